@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.simon816.j65el02.Bus;
+import com.simon816.j65el02.Machine;
+import com.simon816.j65el02.device.RPIOExpander;
+import com.simon816.j65el02.device.RedBus;
+
+/**
+ * Address decoding in the bus, for RAM and for a peripheral in the RedBus window.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BusBenchmark {
+
+    private static final int WINDOW = 0x0300;
+
+    private Bus bus;
+    private int address;
+
+    @Setup
+    public void setup() {
+        Machine machine = new Machine(0x10000);
+        machine.setPeripheral(3, new RPIOExpander());
+        this.bus = machine.getBus();
+        RedBus redBus = this.bus.getRedBus();
+        redBus.setActiveDevice(3);
+        redBus.setWindowOffset(WINDOW);
+        redBus.setEnabled(true);
+    }
+
+    private int nextAddress() {
+        // Walk through RAM above the RedBus window
+        this.address = (this.address + 0x101) & 0xfff;
+        return 0x1000 + this.address;
+    }
+
+    @Benchmark
+    public int readRam() {
+        return this.bus.read(nextAddress(), true);
+    }
+
+    @Benchmark
+    public void writeRam() {
+        this.bus.write(nextAddress(), this.address);
+    }
+
+    @Benchmark
+    public int peekRam() {
+        return this.bus.peek(nextAddress());
+    }
+
+    @Benchmark
+    public int readRedBus() {
+        return this.bus.read(WINDOW, true);
+    }
+
+    @Benchmark
+    public void writeRedBus() {
+        this.bus.write(WINDOW + 2, this.address++);
+    }
+
+}
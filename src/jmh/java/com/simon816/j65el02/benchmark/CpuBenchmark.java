@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.simon816.j65el02.Cpu;
+import com.simon816.j65el02.Machine;
+
+/**
+ * Raw CPU throughput on the {@link GuestLoop} programs. Each operation is one instruction, so the
+ * scores in ops/us are millions of instructions per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CpuBenchmark {
+
+    private static final int INSTRUCTIONS = 100000;
+
+    @Param({"ALU", "WIDE", "FORTH", "MULDIV"})
+    public GuestLoop workload;
+
+    @Param({"DISABLED", "ENABLED"})
+    public Cpu.RecompilerMode recompiler;
+
+    private Machine machine;
+    private Cpu cpu;
+
+    @Setup
+    public void setup() {
+        this.machine = new Machine(0x10000);
+        this.workload.load(this.machine);
+        this.cpu = this.machine.getCpu();
+        this.cpu.setRecompilerMode(this.recompiler);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public int step() {
+        for (int i = 0; i < INSTRUCTIONS; i++) {
+            this.cpu.step();
+        }
+        return this.cpu.getCpuState().pc;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public int stepBlock() {
+        // Blocks can take this a few instructions past the count, which is within the noise
+        int executed = 0;
+        while (executed < INSTRUCTIONS) {
+            executed += this.cpu.stepBlock();
+        }
+        return executed;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public long runFor() {
+        return this.machine.runFor(INSTRUCTIONS);
+    }
+
+}
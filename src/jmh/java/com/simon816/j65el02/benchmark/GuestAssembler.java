@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds 65el02 machine code with labels for branch and jump targets. Opcodes are emitted as
+ * plain bytes, each with a comment naming the instruction.
+ */
+final class GuestAssembler {
+
+    private final int origin;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final List<Fixup> fixups = new ArrayList<>();
+
+    GuestAssembler(int origin) {
+        this.origin = origin;
+    }
+
+    private int here() {
+        return this.origin + this.code.size();
+    }
+
+    GuestAssembler emit(int... bytes) {
+        for (int b : bytes) {
+            this.code.write(b);
+        }
+        return this;
+    }
+
+    /**
+     * Emits an instruction with a 16-bit operand.
+     */
+    GuestAssembler word(int opcode, int operand) {
+        return emit(opcode, operand & 0xff, (operand >>> 8) & 0xff);
+    }
+
+    GuestAssembler label(String name) {
+        if (this.labels.put(name, here()) != null) {
+            throw new IllegalArgumentException("Duplicate label " + name);
+        }
+        return this;
+    }
+
+    /**
+     * Emits a branch with an 8-bit relative offset to a label.
+     */
+    GuestAssembler branch(int opcode, String label) {
+        emit(opcode, 0);
+        this.fixups.add(new Fixup(this.code.size() - 1, label, true));
+        return this;
+    }
+
+    /**
+     * Emits an instruction with the 16-bit address of a label as its operand.
+     */
+    GuestAssembler address(int opcode, String label) {
+        emit(opcode, 0, 0);
+        this.fixups.add(new Fixup(this.code.size() - 2, label, false));
+        return this;
+    }
+
+    byte[] assemble() {
+        byte[] bytes = this.code.toByteArray();
+        for (Fixup fixup : this.fixups) {
+            Integer target = this.labels.get(fixup.label);
+            if (target == null) {
+                throw new IllegalArgumentException("Unknown label " + fixup.label);
+            }
+            if (fixup.relative) {
+                int offset = target - (this.origin + fixup.offset + 1);
+                if (offset < -128 || offset > 127) {
+                    throw new IllegalArgumentException("Branch to " + fixup.label + " out of range");
+                }
+                bytes[fixup.offset] = (byte) offset;
+            } else {
+                bytes[fixup.offset] = (byte) target.intValue();
+                bytes[fixup.offset + 1] = (byte) (target >>> 8);
+            }
+        }
+        return bytes;
+    }
+
+    private static final class Fixup {
+
+        final int offset;
+        final String label;
+        final boolean relative;
+
+        Fixup(int offset, String label, boolean relative) {
+            this.offset = offset;
+            this.label = label;
+            this.relative = relative;
+        }
+    }
+
+}
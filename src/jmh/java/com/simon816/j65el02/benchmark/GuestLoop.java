@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02.benchmark;
+
+import com.simon816.j65el02.Machine;
+
+/**
+ * Small guest programs that loop forever, for measuring raw CPU throughput. Each is loaded at
+ * 0x400 with the program counter pointing at it.
+ */
+public enum GuestLoop {
+
+    /**
+     * 8-bit arithmetic and logic in emulation mode.
+     */
+    ALU(0x400,
+            0x69, 0x01, // ADC #$01
+            0x49, 0x55, // EOR #$55
+            0x29, 0x7f, // AND #$7F
+            0x09, 0x01, // ORA #$01
+            0x0a, // ASL A
+            0x4a, // LSR A
+            0xca, // DEX
+            0xd0, 0xf3, // BNE $0400
+            0x80, 0xf1), // BRA $0400
+
+    /**
+     * 16-bit loads, stores and arithmetic in native mode.
+     */
+    WIDE(0x404,
+            0x18, // CLC
+            0xfb, // XCE
+            0xc2, 0x30, // REP #$30
+            0xa9, 0x34, 0x12, // LDA #$1234
+            0x69, 0x01, 0x01, // ADC #$0101
+            0x8d, 0x00, 0x02, // STA $0200
+            0xae, 0x00, 0x02, // LDX $0200
+            0xe8, // INX
+            0x8e, 0x02, 0x02, // STX $0202
+            0x88, // DEY
+            0xd0, 0xed, // BNE $0404
+            0x80, 0xeb), // BRA $0404
+
+    /**
+     * The Forth inner interpreter. A thread at 0x700 calls a colon definition at 0x600 twice, which
+     * runs a code word three times with NXT, then loops back to the start of the thread.
+     */
+    FORTH(0x400,
+            0x18, // CLC
+            0xfb, // XCE
+            0xc2, 0x30, // REP #$30
+            0xa2, 0x00, 0x07, // LDX #$0700
+            0x5c, // TXI
+            0x02, // NXT
+            // 0x0409 padding
+            0xea, 0xea, 0xea, 0xea, 0xea, 0xea, 0xea,
+            // 0x0410 code word: count
+            0xc8, // INY
+            0x02, // NXT
+            // 0x0412 code word: exit
+            0x2b, // RLI
+            0x02, // NXT
+            // 0x0414 code word: again
+            0xa2, 0x00, 0x07, // LDX #$0700
+            0x5c, // TXI
+            0x02), // NXT
+
+    /**
+     * Signed 16-bit multiply and divide in native mode.
+     */
+    MULDIV(0x409,
+            0x18, // CLC
+            0xfb, // XCE
+            0xc2, 0x30, // REP #$30
+            0xa9, 0x07, 0x00, // LDA #$0007
+            0x85, 0x10, // STA $10
+            0x8a, // TXA
+            0x0f, 0x10, // MUL $10
+            0x4f, 0x10, // DIV $10
+            0xe8, // INX
+            0x80, 0xf8); // BRA $0409
+
+    private final int loopStart;
+    private final int[] code;
+
+    GuestLoop(int loopStart, int... code) {
+        this.loopStart = loopStart;
+        this.code = code;
+    }
+
+    /**
+     * Gets the address that the program loops back to, after any setup.
+     */
+    public int getLoopStart() {
+        return this.loopStart;
+    }
+
+    /**
+     * Loads the program into the machine and points the CPU at it.
+     *
+     * @param machine The machine
+     */
+    public void load(Machine machine) {
+        for (int i = 0; i < this.code.length; i++) {
+            machine.getBus().write(0x400 + i, this.code[i]);
+        }
+        if (this == FORTH) {
+            // Colon definition: ENT count count count exit
+            machine.getBus().write(0x600, 0x22);
+            writeCells(machine, 0x601, 0x0410, 0x0410, 0x0410, 0x0412);
+            // Thread: definition definition again
+            writeCells(machine, 0x700, 0x0600, 0x0600, 0x0414);
+        }
+        machine.getCpu().getCpuState().pc = 0x400;
+    }
+
+    private static void writeCells(Machine machine, int address, int... cells) {
+        for (int cell : cells) {
+            machine.getBus().write(address++, cell & 0xff);
+            machine.getBus().write(address++, cell >>> 8);
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.simon816.j65el02.Machine;
+import com.simon816.j65el02.device.FileDiskDriver;
+import com.simon816.j65el02.device.MonitorDriver;
+import com.simon816.j65el02.device.RPDrive;
+import com.simon816.j65el02.device.RPMonitor;
+
+/**
+ * Peripheral operations, driven through their registers as the CPU would drive them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeripheralBenchmark {
+
+    /* Sectors in the disk image, the most RPDrive can address */
+    private static final int SECTORS = 0x800;
+
+    @State(Scope.Thread)
+    public static class Disk {
+
+        private Path file;
+        private FileDiskDriver driver;
+        private RPDrive drive;
+        private int sector;
+
+        @Setup
+        public void setup() throws IOException {
+            this.file = Files.createTempFile("j65el02", ".img");
+            byte[] image = new byte[SECTORS * 0x80];
+            new Random(0).nextBytes(image);
+            Files.write(this.file, image);
+            this.driver = new FileDiskDriver(this.file, "Benchmark", "0", true);
+            this.drive = new RPDrive(new Machine(0x2000), this.driver);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            this.driver.close();
+            Files.delete(this.file);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Monitor {
+
+        /* 1: fill, 2: invert, 3: shift */
+        @Param({"1", "2", "3"})
+        public int blitMode;
+
+        private RPMonitor monitor;
+
+        @Setup
+        public void setup() {
+            this.monitor = new RPMonitor(new Machine(0x2000), new NullMonitorDriver());
+            // The whole screen, shifted up a row when in shift mode
+            this.monitor.write(0x08, 0); // X start, or fill character
+            this.monitor.write(0x09, 1); // Y start
+            this.monitor.write(0x0A, 0); // X offset
+            this.monitor.write(0x0B, 0); // Y offset
+            this.monitor.write(0x0C, RPMonitor.WIDTH);
+            this.monitor.write(0x0D, RPMonitor.HEIGHT);
+        }
+    }
+
+    @Benchmark
+    public int readSector(Disk disk) {
+        disk.sector = (disk.sector + 1) & (SECTORS - 1);
+        disk.drive.write(0x80, disk.sector & 0xff);
+        disk.drive.write(0x81, disk.sector >> 8);
+        disk.drive.write(0x82, 0x04); // Read Disk Sector
+        disk.drive.update();
+        return disk.drive.read(0x82);
+    }
+
+    @Benchmark
+    public void blit(Monitor monitor) {
+        monitor.monitor.write(0x07, monitor.blitMode);
+        monitor.monitor.update();
+    }
+
+    private static class NullMonitorDriver implements MonitorDriver {
+
+        @Override
+        public void setMonitor(RPMonitor monitor) {
+        }
+
+        @Override
+        public void updateCursor(int cursorX, int cursorY, int cursorMode) {
+        }
+
+        @Override
+        public void update(byte[][] windowData) {
+        }
+    }
+
+}
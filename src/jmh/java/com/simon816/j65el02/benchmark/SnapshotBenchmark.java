@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.simon816.j65el02.Machine;
+
+/**
+ * Saving and restoring a machine with 64k of RAM.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    private Machine machine;
+    private byte[] snapshot;
+    private int address;
+
+    @Setup
+    public void setup() {
+        this.machine = new Machine(0x10000);
+        Random random = new Random(0);
+        for (int address = 0x400; address < 0x10000; address++) {
+            this.machine.getBus().write(address, random.nextInt(0x100));
+        }
+        this.snapshot = this.machine.snapshot();
+    }
+
+    @Benchmark
+    public byte[] snapshot() {
+        return this.machine.snapshot();
+    }
+
+    @Benchmark
+    public void restore() throws IOException {
+        this.machine.restore(this.snapshot);
+    }
+
+    /**
+     * A delta after a few pages were written, as a machine running between checkpoints would.
+     */
+    @Benchmark
+    public byte[] snapshotDelta() {
+        for (int i = 0; i < 4; i++) {
+            this.address = (this.address + 0x1234) & 0xffff;
+            this.machine.getBus().write(this.address, i);
+        }
+        return this.machine.snapshotDelta();
+    }
+
+    @Benchmark
+    public Machine fork() {
+        return this.machine.fork(machine -> { });
+    }
+
+}
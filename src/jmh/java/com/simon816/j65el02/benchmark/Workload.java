@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02.benchmark;
+
+import com.simon816.j65el02.Machine;
+
+/**
+ * Guest programs for {@link WorkloadSuite}. Each is booted from a disk image by the suite's boot
+ * ROM, which leaves the CPU in native mode with 16-bit registers and jumps to 0x500. Each ends
+ * with STP, leaving a 16-bit result at 0x20 that is checked against the expected value.
+ */
+enum Workload {
+
+    /**
+     * Fills 8k of memory and copies it 256 times, 16 bits at a time.
+     */
+    MEMCOPY(0x1ffe) {
+        @Override
+        void build(GuestAssembler a) {
+            a.word(0xa9, 0x0100).emit(0x85, 0x22); // LDA #$0100 ; STA $22
+            a.word(0xa2, 0x0000); // LDX #$0000
+            a.label("fill");
+            a.emit(0x8a); // TXA
+            a.word(0x9d, 0x4000); // STA $4000,X
+            a.emit(0xe8, 0xe8); // INX ; INX
+            a.word(0xe0, 0x2000).branch(0xd0, "fill"); // CPX #$2000 ; BNE fill
+            a.label("outer");
+            a.word(0xa2, 0x0000); // LDX #$0000
+            a.label("copy");
+            a.word(0xbd, 0x4000); // LDA $4000,X
+            a.word(0x9d, 0x6000); // STA $6000,X
+            a.emit(0xe8, 0xe8); // INX ; INX
+            a.word(0xe0, 0x2000).branch(0xd0, "copy"); // CPX #$2000 ; BNE copy
+            a.emit(0xc6, 0x22).branch(0xd0, "outer"); // DEC $22 ; BNE outer
+            a.word(0xad, 0x7ffe).emit(0x85, 0x20); // LDA $7FFE ; STA $20
+        }
+    },
+
+    /**
+     * The sieve of Eratosthenes over 8k byte flags, 32 times, counting the primes.
+     */
+    SIEVE(1028) {
+        @Override
+        void build(GuestAssembler a) {
+            a.word(0xa9, 0x0020).emit(0x85, 0x22); // LDA #$0020 ; STA $22
+            a.label("outer");
+            a.emit(0xe2, 0x20); // SEP #$20
+            a.emit(0xa9, 0x01); // LDA #$01
+            a.word(0xa2, 0x0000); // LDX #$0000
+            a.label("clear");
+            a.word(0x9d, 0x4000).emit(0xe8); // STA $4000,X ; INX
+            a.word(0xe0, 0x2000).branch(0xd0, "clear"); // CPX #$2000 ; BNE clear
+            a.emit(0xc2, 0x20); // REP #$20
+            a.emit(0x64, 0x20); // STZ $20
+            a.word(0xa2, 0x0002); // LDX #$0002
+            a.label("scan");
+            a.emit(0xe2, 0x20); // SEP #$20
+            a.word(0xbd, 0x4000).branch(0xf0, "next"); // LDA $4000,X ; BEQ next
+            a.emit(0xc2, 0x20); // REP #$20
+            a.emit(0xe6, 0x20); // INC $20
+            a.emit(0x8a, 0x85, 0x24); // TXA ; STA $24
+            a.emit(0x18, 0x65, 0x24, 0xa8); // CLC ; ADC $24 ; TAY
+            a.label("mark");
+            a.word(0xc0, 0x2000).branch(0xb0, "next"); // CPY #$2000 ; BCS next
+            a.emit(0xe2, 0x20); // SEP #$20
+            a.emit(0xa9, 0x00).word(0x99, 0x4000); // LDA #$00 ; STA $4000,Y
+            a.emit(0xc2, 0x20); // REP #$20
+            a.emit(0x98, 0x18, 0x65, 0x24, 0xa8); // TYA ; CLC ; ADC $24 ; TAY
+            a.branch(0x80, "mark"); // BRA mark
+            a.label("next");
+            a.emit(0xe8); // INX
+            a.word(0xe0, 0x2000).branch(0xd0, "scan"); // CPX #$2000 ; BNE scan
+            a.emit(0xc2, 0x20); // REP #$20
+            a.emit(0xc6, 0x22).branch(0xd0, "outer"); // DEC $22 ; BNE outer
+        }
+    },
+
+    /**
+     * Signed 16-bit multiply and divide, summing (i * 7) / 7 for i up to 4096, 40 times.
+     */
+    MULDIV(0xc000) {
+        @Override
+        void build(GuestAssembler a) {
+            a.word(0xa9, 0x0007).emit(0x85, 0x24); // LDA #$0007 ; STA $24
+            a.word(0xa9, 0x0028).emit(0x85, 0x22); // LDA #$0028 ; STA $22
+            a.emit(0x64, 0x20); // STZ $20
+            a.label("outer");
+            a.word(0xa2, 0x0000); // LDX #$0000
+            a.label("loop");
+            a.emit(0x8a); // TXA
+            a.emit(0x0f, 0x24); // MUL $24
+            a.emit(0x4f, 0x24); // DIV $24
+            a.emit(0x18, 0x65, 0x20, 0x85, 0x20); // CLC ; ADC $20 ; STA $20
+            a.emit(0xe8); // INX
+            a.word(0xe0, 0x1000).branch(0xd0, "loop"); // CPX #$1000 ; BNE loop
+            a.emit(0xc6, 0x22).branch(0xd0, "outer"); // DEC $22 ; BNE outer
+        }
+    },
+
+    /**
+     * Scrolls the monitor 2000 times with blit mode 3, writing a new bottom row before each.
+     */
+    SCROLL(0) {
+        @Override
+        void build(GuestAssembler a) {
+            a.word(0xa9, 2000).emit(0x85, 0x22); // LDA #2000 ; STA $22
+            a.emit(0xe2, 0x20); // SEP #$20
+            a.emit(0xa5, 0x01, 0xef, 0x00); // LDA $01 ; MMU $00 - monitor
+            a.label("frame");
+            a.emit(0xa9, 49).word(0x8d, 0x0300); // LDA #49 ; STA $0300 - row
+            a.word(0xa2, 0x0000); // LDX #$0000
+            a.label("row");
+            a.emit(0x8a).word(0x9d, 0x0310); // TXA ; STA $0310,X
+            a.emit(0xe8); // INX
+            a.word(0xe0, 80).branch(0xd0, "row"); // CPX #80 ; BNE row
+            a.word(0x9c, 0x0308); // STZ $0308 - source x
+            a.emit(0xa9, 1).word(0x8d, 0x0309); // LDA #1 ; STA $0309 - source y
+            a.word(0x9c, 0x030a).word(0x9c, 0x030b); // STZ $030A ; STZ $030B - destination
+            a.emit(0xa9, 80).word(0x8d, 0x030c); // LDA #80 ; STA $030C - width
+            a.emit(0xa9, 49).word(0x8d, 0x030d); // LDA #49 ; STA $030D - height
+            a.emit(0xa9, 3).word(0x8d, 0x0307); // LDA #3 ; STA $0307 - shift
+            a.label("blit");
+            a.word(0xad, 0x0307).branch(0xd0, "blit"); // LDA $0307 ; BNE blit
+            a.emit(0xc2, 0x20); // REP #$20
+            a.emit(0xc6, 0x22).branch(0xf0, "done"); // DEC $22 ; BEQ done
+            a.emit(0xe2, 0x20); // SEP #$20
+            a.branch(0x80, "frame"); // BRA frame
+            a.label("done");
+            a.emit(0x64, 0x20); // STZ $20
+        }
+    };
+
+    private final int expected;
+
+    Workload(int expected) {
+        this.expected = expected;
+    }
+
+    abstract void build(GuestAssembler a);
+
+    /**
+     * Assembles the program, which is loaded at 0x500.
+     */
+    byte[] assemble() {
+        GuestAssembler a = new GuestAssembler(0x500);
+        build(a);
+        a.emit(0xdb); // STP
+        return a.assemble();
+    }
+
+    /**
+     * Checks the result left by the program.
+     *
+     * @param machine The machine, after the program stopped
+     * @return A description of the problem, or null if the result is correct
+     */
+    String check(Machine machine) {
+        int result = machine.getBus().peek(0x20) | machine.getBus().peek(0x21) << 8;
+        return result == this.expected ? null : "result " + result + ", expected " + this.expected;
+    }
+
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import com.simon816.j65el02.Cpu;
+import com.simon816.j65el02.Machine;
+import com.simon816.j65el02.device.FileDiskDriver;
+import com.simon816.j65el02.device.MonitorDriver;
+import com.simon816.j65el02.device.RPDrive;
+import com.simon816.j65el02.device.RPMonitor;
+
+/**
+ * Boots each {@link Workload} on a {@link Machine} from a disk image, runs it to its STP and
+ * reports the instructions executed, the wall time and the bytes allocated by the host. Run with
+ * "gradle workloads", passing options with -PworkloadArgs:
+ *
+ * <pre>
+ * --runs N              Run each workload N times and report the fastest, default 5
+ * --recompiler MODE     DISABLED, ENABLED or VERIFY, default ENABLED
+ * --save FILE           Save the results as a baseline
+ * --baseline FILE       Compare against a saved baseline, failing on regressions
+ * --tolerance PERCENT   Allowed slowdown against the baseline, default 10
+ * --forth ROM IMAGE     Also boot a Forth disk image with its boot ROM, up to the prompt
+ * NAME...               Only run the named workloads
+ * </pre>
+ *
+ * <p>
+ * The instruction counts are deterministic, so any change to them against the baseline is a
+ * regression. The Forth boot is taken to have reached the prompt when the CPU waits for an
+ * interrupt with nothing left to wake it, which is when it waits for a key.
+ * </p>
+ */
+public final class WorkloadSuite {
+
+    private static final int RAM_SIZE = 0x10000;
+    private static final int DRIVE_ID = 2;
+    private static final int MONITOR_ID = 1;
+
+    /* Sectors loaded from the disk image by the boot ROM, to 0x500 onwards */
+    private static final int BOOT_SECTORS = 16;
+    private static final int SECTOR_SIZE = 0x80;
+
+    /* Instructions run between checks for the end of a workload */
+    private static final int SLICE = 100000;
+    /* Gives up on a workload that has not stopped after this many instructions */
+    private static final long MAX_INSTRUCTIONS = 2000000000L;
+
+    private int runs = 5;
+    private Cpu.RecompilerMode recompiler = Cpu.RecompilerMode.ENABLED;
+    private Path savePath;
+    private Path baselinePath;
+    private double tolerance = 10;
+    private Path forthRom;
+    private Path forthImage;
+    private final List<Workload> workloads = new ArrayList<>();
+
+    private Path tempDir;
+    private Path bootRom;
+
+    public static void main(String[] args) throws IOException {
+        WorkloadSuite suite = new WorkloadSuite();
+        suite.parseArgs(args);
+        System.exit(suite.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--runs":
+                    this.runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--recompiler":
+                    this.recompiler = Cpu.RecompilerMode.valueOf(args[++i]);
+                    break;
+                case "--save":
+                    this.savePath = Paths.get(args[++i]);
+                    break;
+                case "--baseline":
+                    this.baselinePath = Paths.get(args[++i]);
+                    break;
+                case "--tolerance":
+                    this.tolerance = Double.parseDouble(args[++i]);
+                    break;
+                case "--forth":
+                    this.forthRom = Paths.get(args[++i]);
+                    this.forthImage = Paths.get(args[++i]);
+                    break;
+                default:
+                    this.workloads.add(Workload.valueOf(args[i]));
+            }
+        }
+        if (this.workloads.isEmpty() && this.forthRom == null) {
+            for (Workload workload : Workload.values()) {
+                this.workloads.add(workload);
+            }
+        }
+    }
+
+    private boolean run() throws IOException {
+        this.tempDir = Files.createTempDirectory("j65el02-workloads");
+        try {
+            this.bootRom = this.tempDir.resolve("boot.rom");
+            Files.write(this.bootRom, assembleBootRom());
+            Properties baseline = this.baselinePath == null ? null : load(this.baselinePath);
+            Properties results = new Properties();
+            boolean ok = true;
+            System.out.printf("%-10s %14s %10s %10s %14s %8s  %s%n",
+                    "workload", "instructions", "ms", "MIPS", "allocated", "frames", "result");
+            for (Workload workload : this.workloads) {
+                Path image = this.tempDir.resolve(workload.name().toLowerCase() + ".img");
+                Files.write(image, diskImage(workload.assemble()));
+                ok &= report(workload.name(), measure(this.bootRom, image, workload), baseline, results);
+            }
+            if (this.forthRom != null) {
+                ok &= report("FORTH", measure(this.forthRom, this.forthImage, null), baseline, results);
+            }
+            if (this.savePath != null) {
+                try (OutputStream out = Files.newOutputStream(this.savePath)) {
+                    results.store(out, "Workload baseline, recompiler " + this.recompiler);
+                }
+            }
+            return ok;
+        } finally {
+            try (Stream<Path> files = Files.list(this.tempDir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(this.tempDir);
+        }
+    }
+
+    private Result measure(Path rom, Path image, Workload workload) throws IOException {
+        Result best = null;
+        for (int run = 0; run < this.runs; run++) {
+            Result result = runOnce(rom, image, workload);
+            if (best == null || result.nanos < best.nanos) {
+                best = result;
+            }
+        }
+        return best;
+    }
+
+    private Result runOnce(Path rom, Path image, Workload workload) throws IOException {
+        Machine machine = new Machine(rom, RAM_SIZE);
+        FileDiskDriver driver = new FileDiskDriver(image, "Workload", "0", true);
+        CountingMonitorDriver monitorDriver = new CountingMonitorDriver();
+        try {
+            machine.setPeripheral(DRIVE_ID, new RPDrive(machine, driver));
+            machine.setPeripheral(MONITOR_ID, new RPMonitor(machine, monitorDriver));
+            machine.setDefaultDriveId(DRIVE_ID);
+            machine.setDefaultMonitorId(MONITOR_ID);
+            machine.reset();
+            // A cold boot starts in the boot ROM, as on a RedPower computer
+            machine.getCpu().getCpuState().pc = 0x400;
+            machine.getCpu().setRecompilerMode(this.recompiler);
+
+            Result result = new Result();
+            long startInstructions = machine.getCpu().getCpuState().stepCounter;
+            long startAllocated = allocatedBytes();
+            long start = System.nanoTime();
+            long executed = 0;
+            while (!machine.getCpu().isStopped() && !machine.isWaitingForSignal()
+                    && executed < MAX_INSTRUCTIONS) {
+                executed += machine.runSlice(SLICE);
+            }
+            result.nanos = System.nanoTime() - start;
+            result.allocated = allocatedBytes() - startAllocated;
+            result.instructions = machine.getCpu().getCpuState().stepCounter - startInstructions;
+            result.frames = monitorDriver.frames;
+            if (workload == null) {
+                result.problem = machine.isWaitingForSignal() ? null : "did not reach the prompt";
+            } else if (!machine.getCpu().isStopped()) {
+                result.problem = "did not stop";
+            } else {
+                result.problem = workload.check(machine);
+            }
+            return result;
+        } finally {
+            driver.close();
+        }
+    }
+
+    private boolean report(String name, Result result, Properties baseline, Properties results) {
+        double mips = result.instructions * 1000.0 / result.nanos;
+        List<String> problems = new ArrayList<>();
+        if (result.problem != null) {
+            problems.add(result.problem);
+        }
+        if (baseline != null && baseline.getProperty(name + ".instructions") != null) {
+            long instructions = Long.parseLong(baseline.getProperty(name + ".instructions"));
+            double baselineMips = Double.parseDouble(baseline.getProperty(name + ".mips"));
+            long allocated = Long.parseLong(baseline.getProperty(name + ".allocated"));
+            if (result.instructions != instructions) {
+                problems.add("instructions changed from " + instructions);
+            }
+            if (mips < baselineMips * (1 - this.tolerance / 100)) {
+                problems.add(String.format("slower than baseline %.1f MIPS", baselineMips));
+            }
+            if (allocated >= 0 && result.allocated > allocated * (1 + this.tolerance / 100)) {
+                problems.add("allocated more than baseline " + allocated);
+            }
+        }
+        results.setProperty(name + ".instructions", Long.toString(result.instructions));
+        results.setProperty(name + ".mips", String.format(Locale.ROOT, "%.1f", mips));
+        results.setProperty(name + ".allocated", Long.toString(result.allocated));
+        System.out.printf("%-10s %14d %10.1f %10.1f %14d %8d  %s%n", name, result.instructions,
+                result.nanos / 1e6, mips, result.allocated, result.frames,
+                problems.isEmpty() ? "ok" : String.join("; ", problems));
+        return problems.isEmpty();
+    }
+
+    /**
+     * Builds the boot ROM. Like the RedPower one, it reads the disk in the drive whose id is at
+     * 0x00 into memory from 0x500, then jumps there.
+     */
+    private static byte[] assembleBootRom() {
+        GuestAssembler a = new GuestAssembler(0x400);
+        a.emit(0x18, 0xfb); // CLC ; XCE
+        a.emit(0xc2, 0x30); // REP #$30
+        a.word(0xa9, 0x0300).emit(0xef, 0x01); // LDA #$0300 ; MMU $01 - RedBus window
+        a.emit(0xa5, 0x00, 0xef, 0x00); // LDA $00 ; MMU $00 - boot drive
+        a.emit(0xef, 0x02); // MMU $02 - enable RedBus
+        a.word(0xa9, 0x0500).emit(0x85, 0x10); // LDA #$0500 ; STA $10
+        a.emit(0x64, 0x12); // STZ $12
+        a.label("sector");
+        a.emit(0xa5, 0x12).word(0x8d, 0x0380); // LDA $12 ; STA $0380 - sector number
+        a.word(0xa9, 0x0004).word(0x8d, 0x0382); // LDA #$0004 ; STA $0382 - read sector
+        a.label("wait");
+        a.word(0xad, 0x0382).word(0x29, 0x00ff); // LDA $0382 ; AND #$00FF
+        a.word(0xc9, 0x0004).branch(0xf0, "wait"); // CMP #$0004 ; BEQ wait
+        a.word(0xc9, 0x0000).branch(0xd0, "fail"); // CMP #$0000 ; BNE fail
+        a.word(0xa0, 0x0000); // LDY #$0000
+        a.label("copy");
+        a.word(0xb9, 0x0300).emit(0x91, 0x10); // LDA $0300,Y ; STA ($10),Y
+        a.emit(0xc8, 0xc8); // INY ; INY
+        a.word(0xc0, SECTOR_SIZE).branch(0xd0, "copy"); // CPY #$0080 ; BNE copy
+        a.emit(0xa5, 0x10, 0x18).word(0x69, SECTOR_SIZE).emit(0x85, 0x10); // LDA $10 ; CLC ; ADC #$0080 ; STA $10
+        a.emit(0xe6, 0x12, 0xa5, 0x12); // INC $12 ; LDA $12
+        a.word(0xc9, BOOT_SECTORS).branch(0xd0, "sector"); // CMP #BOOT_SECTORS ; BNE sector
+        a.word(0x4c, 0x0500); // JMP $0500
+        a.label("fail");
+        a.emit(0xdb); // STP
+        byte[] rom = new byte[0x100];
+        byte[] code = a.assemble();
+        System.arraycopy(code, 0, rom, 0, code.length);
+        return rom;
+    }
+
+    private static byte[] diskImage(byte[] program) {
+        if (program.length > BOOT_SECTORS * SECTOR_SIZE) {
+            throw new IllegalArgumentException("Program too large to boot");
+        }
+        byte[] image = new byte[BOOT_SECTORS * SECTOR_SIZE];
+        System.arraycopy(program, 0, image, 0, program.length);
+        return image;
+    }
+
+    private static Properties load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    /**
+     * Gets the bytes allocated by this thread so far, or -1 if the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static final class Result {
+
+        long instructions;
+        long nanos;
+        long allocated;
+        int frames;
+        String problem;
+    }
+
+    private static final class CountingMonitorDriver implements MonitorDriver {
+
+        int frames;
+
+        @Override
+        public void setMonitor(RPMonitor monitor) {
+        }
+
+        @Override
+        public void updateCursor(int cursorX, int cursorY, int cursorMode) {
+        }
+
+        @Override
+        public void update(byte[][] windowData) {
+            this.frames++;
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.simon816.j65el02;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A cache of decoded basic blocks. A block is a straight-line run of instructions within a single
+ * page of RAM, ending at the first instruction that may change the program counter or the
+ * register widths. Once decoded, a block can be executed without fetching and decoding its bytes
+ * through the bus again.
+ *
+ * <p>
+ * Pages holding decoded blocks are marked on the {@link Bus}, and any write to them throws away
+ * every block in that page.
+ * </p>
+ */
+final class BlockCache {
+
+    static final int MAX_BLOCK_LENGTH = 64;
+
+    /**
+     * The number of times a block runs before it is recompiled.
+     */
+    private static final int COMPILE_THRESHOLD = 1000;
+
+    /**
+     * Pages written to more often than this while holding blocks are assumed to hold self-modifying
+     * code, and their blocks are no longer recompiled.
+     */
+    private static final int MAX_PAGE_INVALIDATIONS = 16;
+
+    /**
+     * Whether each opcode ends a block.
+     */
+    private static final boolean[] blockEnds = new boolean[0x100];
+
+    static {
+        for (int op = 0; op < 0x100; op++) {
+            switch (InstructionTable.opcodeNames[op]) {
+                // Change the program counter
+                case "BRK":
+                case "JMP":
+                case "JSR":
+                case "RTS":
+                case "RTI":
+                case "NXT":
+                case "ENT":
+                // Change the register widths, and so the size of later instructions
+                case "XCE":
+                case "REP":
+                case "SEP":
+                case "PLP":
+                // Stop the processor or change the memory map
+                case "WAI":
+                case "STP":
+                case "MMU":
+                case "NUL":
+                    blockEnds[op] = true;
+                    break;
+                default:
+                    blockEnds[op] = InstructionTable.instructionModes[op] == InstructionTable.Mode.REL;
+            }
+        }
+    }
+
+    static final class Block {
+
+        final int startPc;
+        final int widthIndex;
+        final int length;
+        final int[] opcodes;
+        final int[] args0;
+        final int[] args1;
+        final int[] sizes;
+        final int[] nextPcs;
+        boolean valid = true;
+        int executions;
+        CompiledBlock compiled;
+
+        Block(int startPc, int widthIndex, int length) {
+            this.startPc = startPc;
+            this.widthIndex = widthIndex;
+            this.length = length;
+            this.opcodes = new int[length];
+            this.args0 = new int[length];
+            this.args1 = new int[length];
+            this.sizes = new int[length];
+            this.nextPcs = new int[length];
+        }
+    }
+
+    private final Bus bus;
+    /* Blocks by register widths, page and start offset, with each page allocated on first use */
+    private final Block[][][] blocks = new Block[4][][];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final List<Block>[] pageBlocks = new List[0x100];
+    private final int[] pageInvalidations = new int[0x100];
+
+    BlockCache(Bus bus) {
+        this.bus = bus;
+        bus.setCodeWriteListener(this::invalidatePage);
+    }
+
+    /**
+     * Gets the block starting at the given address, decoding it if necessary.
+     *
+     * @param pc The address of the first instruction
+     * @param widthIndex The current register widths, see {@link DecodeTable#widthIndex}
+     * @return The block, or null if no block can be decoded at the address
+     */
+    Block get(int pc, int widthIndex) {
+        Block[][] widthBlocks = this.blocks[widthIndex];
+        if (widthBlocks == null) {
+            widthBlocks = this.blocks[widthIndex] = new Block[0x100][];
+        }
+        int page = pc >> 8;
+        Block[] pageStarts = widthBlocks[page];
+        Block block = pageStarts != null ? pageStarts[pc & 0xff] : null;
+        if (block == null) {
+            block = decode(pc, widthIndex);
+            if (block != null) {
+                if (pageStarts == null) {
+                    pageStarts = widthBlocks[page] = new Block[0x100];
+                }
+                pageStarts[pc & 0xff] = block;
+                if (this.pageBlocks[page] == null) {
+                    this.pageBlocks[page] = new ArrayList<>();
+                }
+                this.pageBlocks[page].add(block);
+                this.bus.setCodePage(page, true);
+            }
+        }
+        return block;
+    }
+
+    private Block decode(int startPc, int widthIndex) {
+        int page = startPc >> 8;
+        if (!this.bus.isRamPage(page)) {
+            return null;
+        }
+        int[] sizes = DecodeTable.instructionSizes[widthIndex];
+        int end = startPc;
+        int length = 0;
+        boolean ended = false;
+        while (!ended && length < MAX_BLOCK_LENGTH) {
+            int op = this.bus.peek(end);
+            int size = Math.max(1, sizes[op]);
+            if (((end + size - 1) >> 8) != page) {
+                break;
+            }
+            ended = blockEnds[op];
+            end += size;
+            length++;
+        }
+        if (length == 0) {
+            return null;
+        }
+        Block block = new Block(startPc, widthIndex, length);
+        int pc = startPc;
+        for (int i = 0; i < length; i++) {
+            int op = this.bus.peek(pc);
+            block.opcodes[i] = op;
+            block.sizes[i] = sizes[op];
+            block.args0[i] = block.sizes[i] > 1 ? this.bus.peek(pc + 1) : 0;
+            block.args1[i] = block.sizes[i] > 2 ? this.bus.peek(pc + 2) : 0;
+            pc += Math.max(1, block.sizes[i]);
+            block.nextPcs[i] = pc & 0xffff;
+        }
+        return block;
+    }
+
+    /**
+     * Counts an execution of the block, and decides whether it has just become hot enough to be
+     * recompiled. This is true at most once per block.
+     *
+     * @param block The block
+     * @return True if the block should now be recompiled
+     */
+    boolean shouldCompile(Block block) {
+        if (++block.executions != COMPILE_THRESHOLD
+                || this.pageInvalidations[block.startPc >> 8] > MAX_PAGE_INVALIDATIONS) {
+            return false;
+        }
+        for (int op : block.opcodes) {
+            if (BlockCompiler.isCompiled(op)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Throws away every block in the given page.
+     *
+     * @param page The page number
+     */
+    void invalidatePage(int page) {
+        List<Block> inPage = this.pageBlocks[page];
+        if (inPage != null && !inPage.isEmpty()) {
+            this.pageInvalidations[page]++;
+            for (Block block : inPage) {
+                block.valid = false;
+            }
+            inPage.clear();
+            for (Block[][] widthBlocks : this.blocks) {
+                if (widthBlocks != null) {
+                    widthBlocks[page] = null;
+                }
+            }
+        }
+        this.bus.setCodePage(page, false);
+    }
+
+    /**
+     * Throws away every block.
+     */
+    void flush() {
+        for (int page = 0; page < this.pageBlocks.length; page++) {
+            invalidatePage(page);
+        }
+        Arrays.fill(this.pageInvalidations, 0);
+    }
+
+}
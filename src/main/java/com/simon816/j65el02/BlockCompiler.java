@@ -0,0 +1,571 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.simon816.j65el02;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recompiles hot blocks from the {@link BlockCache} into JVM classes so that HotSpot can optimise
+ * the guest code directly.
+ *
+ * <p>
+ * Instructions that only work on registers and flags are translated into bytecode, with the A, X
+ * and Y registers held in locals for the whole block. Every other instruction is handed back to
+ * the interpreter through {@link CompiledBlock#interpret}, with the registers written back to the
+ * {@link CpuState} beforehand and reloaded afterwards.
+ * </p>
+ *
+ * <p>
+ * A block is compiled for the register widths it was decoded with, so immediate operands and
+ * masks are constants in the generated code.
+ * </p>
+ */
+final class BlockCompiler {
+
+    private static final String BASE_CLASS = "com/simon816/j65el02/CompiledBlock";
+    private static final String STATE_CLASS = "com/simon816/j65el02/CpuState";
+    private static final String PACKAGE = "com/simon816/j65el02/compiled/";
+
+    private static final int LOCAL_STATE = 1;
+    private static final int LOCAL_A = 2;
+    private static final int LOCAL_X = 3;
+    private static final int LOCAL_Y = 4;
+
+    private static int classCounter;
+
+    /**
+     * Loads a single generated class. Each class gets its own loader so that it can be unloaded
+     * as soon as its block is thrown away.
+     */
+    private static final class BlockClassLoader extends ClassLoader {
+
+        BlockClassLoader() {
+            super(CompiledBlock.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private BlockCompiler() {
+    }
+
+    /**
+     * Whether the given opcode is translated into bytecode rather than interpreted.
+     *
+     * @param op The opcode
+     * @return True if the opcode is recompiled
+     */
+    static boolean isCompiled(int op) {
+        // CLI is interpreted, so that the block ends if it unmasks a pending IRQ
+        switch (op) {
+            case 0x18: // CLC
+            case 0x38: // SEC
+            case 0x78: // SEI
+            case 0xb8: // CLV
+            case 0xd8: // CLD
+            case 0xf8: // SED
+            case 0xea: // NOP
+            case 0x88: // DEY
+            case 0xc8: // INY
+            case 0xca: // DEX
+            case 0xe8: // INX
+            case 0x1a: // INC A
+            case 0x3a: // DEC A
+            case 0x8a: // TXA
+            case 0x98: // TYA
+            case 0xa8: // TAY
+            case 0xaa: // TAX
+            case 0x9b: // TXY
+            case 0xbb: // TYX
+            case 0xa9: // LDA #
+            case 0xa2: // LDX #
+            case 0xa0: // LDY #
+            case 0x09: // ORA #
+            case 0x29: // AND #
+            case 0x49: // EOR #
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Compiles a block into a new class.
+     *
+     * @param cpu The CPU that will run the block
+     * @param block The block to compile
+     * @return The compiled block
+     */
+    static CompiledBlock compile(Cpu cpu, BlockCache.Block block) {
+        String name;
+        synchronized (BlockCompiler.class) {
+            name = PACKAGE + "Block" + Utils.wordToHex(block.startPc) + "_" + classCounter++;
+        }
+        byte[] bytes = new ClassBuilder(name).build(block);
+        try {
+            Class<?> cls = new BlockClassLoader().define(name.replace('/', '.'), bytes);
+            CompiledBlock compiled = (CompiledBlock) cls.getDeclaredConstructor().newInstance();
+            compiled.init(cpu, block);
+            return compiled;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to load recompiled block " + name, e);
+        }
+    }
+
+    /**
+     * Writes the class file of a single compiled block.
+     */
+    private static final class ClassBuilder {
+
+        private final String name;
+        private final Map<String, Integer> constants = new HashMap<>();
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(this.pool);
+        private int poolCount = 1;
+
+        ClassBuilder(String name) {
+            this.name = name;
+        }
+
+        byte[] build(BlockCache.Block block) {
+            try {
+                int thisClass = classRef(this.name);
+                int superClass = classRef(BASE_CLASS);
+                Code init = new Code();
+                init.op(0x2a); // aload_0
+                init.op(0xb7).u2(methodRef(BASE_CLASS, "<init>", "()V")); // invokespecial
+                init.op(0xb1); // return
+                Code execute = new BlockCode(this, block).generate();
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                int initName = utf8("<init>");
+                int initDesc = utf8("()V");
+                int executeName = utf8("execute");
+                int executeDesc = utf8("(L" + STATE_CLASS + ";)I");
+                int codeName = utf8("Code");
+                out.writeInt(0xcafebabe);
+                out.writeShort(0);
+                out.writeShort(49); // Java 5, so no stack map frames are needed
+                out.writeShort(this.poolCount);
+                this.poolOut.flush();
+                this.pool.writeTo(out);
+                out.writeShort(0x0031); // public final super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(0); // interfaces
+                out.writeShort(0); // fields
+                out.writeShort(2); // methods
+                writeMethod(out, 0x0001, initName, initDesc, codeName, init, 1, 1);
+                writeMethod(out, 0x0011, executeName, executeDesc, codeName, execute, 8, LOCAL_Y + 1);
+                out.writeShort(0); // attributes
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void writeMethod(DataOutputStream out, int access, int name, int desc, int codeName,
+                Code code, int maxStack, int maxLocals) throws IOException {
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(desc);
+            out.writeShort(1); // attributes
+            out.writeShort(codeName);
+            out.writeInt(12 + code.size());
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.size());
+            code.writeTo(out);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+
+        int utf8(String value) throws IOException {
+            Integer index = this.constants.get("U" + value);
+            if (index == null) {
+                this.poolOut.writeByte(1);
+                this.poolOut.writeUTF(value);
+                index = this.poolCount++;
+                this.constants.put("U" + value, index);
+            }
+            return index;
+        }
+
+        int integer(int value) throws IOException {
+            Integer index = this.constants.get("I" + value);
+            if (index == null) {
+                this.poolOut.writeByte(3);
+                this.poolOut.writeInt(value);
+                index = this.poolCount++;
+                this.constants.put("I" + value, index);
+            }
+            return index;
+        }
+
+        int classRef(String className) throws IOException {
+            return ref("C", 7, utf8(className), -1);
+        }
+
+        int fieldRef(String owner, String field, String desc) throws IOException {
+            return ref("F", 9, classRef(owner), nameAndType(field, desc));
+        }
+
+        int methodRef(String owner, String method, String desc) throws IOException {
+            return ref("M", 10, classRef(owner), nameAndType(method, desc));
+        }
+
+        private int nameAndType(String name, String desc) throws IOException {
+            return ref("N", 12, utf8(name), utf8(desc));
+        }
+
+        private int ref(String kind, int tag, int first, int second) throws IOException {
+            String key = kind + first + ":" + second;
+            Integer index = this.constants.get(key);
+            if (index == null) {
+                this.poolOut.writeByte(tag);
+                this.poolOut.writeShort(first);
+                if (second >= 0) {
+                    this.poolOut.writeShort(second);
+                }
+                index = this.poolCount++;
+                this.constants.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * A growable buffer of bytecode with forward branch patching.
+     */
+    private static class Code {
+
+        private byte[] code = new byte[256];
+        private int size;
+
+        int size() {
+            return this.size;
+        }
+
+        Code op(int op) {
+            if (this.size == this.code.length) {
+                byte[] newCode = new byte[this.code.length * 2];
+                System.arraycopy(this.code, 0, newCode, 0, this.size);
+                this.code = newCode;
+            }
+            this.code[this.size++] = (byte) op;
+            return this;
+        }
+
+        Code u2(int value) {
+            return op(value >> 8).op(value);
+        }
+
+        /**
+         * Emits a branch instruction with a placeholder offset.
+         *
+         * @return The position of the branch, to be passed to {@link #patch}
+         */
+        int branch(int op) {
+            int at = this.size;
+            op(op).u2(0);
+            return at;
+        }
+
+        /**
+         * Makes the branch at the given position jump to the current position.
+         */
+        void patch(int at) {
+            int offset = this.size - at;
+            this.code[at + 1] = (byte) (offset >> 8);
+            this.code[at + 2] = (byte) offset;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.write(this.code, 0, this.size);
+        }
+    }
+
+    /**
+     * Generates the execute method of a block.
+     */
+    private static final class BlockCode extends Code {
+
+        private final ClassBuilder cls;
+        private final BlockCache.Block block;
+        private final boolean mWidth;
+        private final boolean indexWidth;
+
+        BlockCode(ClassBuilder cls, BlockCache.Block block) {
+            this.cls = cls;
+            this.block = block;
+            this.mWidth = (block.widthIndex & DecodeTable.widthIndex(true, false)) != 0;
+            this.indexWidth = (block.widthIndex & DecodeTable.widthIndex(false, true)) != 0;
+        }
+
+        Code generate() throws IOException {
+            loadRegisters();
+            int pendingSteps = 0;
+            int from = 0;
+            for (int i = 0; i < this.block.length; i++) {
+                int op = this.block.opcodes[i];
+                if (isCompiled(op)) {
+                    compileInstruction(op, this.block.args0[i], this.block.args1[i]);
+                    pendingSteps++;
+                    continue;
+                }
+                storeRegisters();
+                addSteps(pendingSteps);
+                pendingSteps = 0;
+                setPc(i == 0 ? this.block.startPc : this.block.nextPcs[i - 1]);
+                op(0x2a); // aload_0
+                pushInt(from);
+                pushInt(i);
+                op(0xb6).u2(this.cls.methodRef(BASE_CLASS, "interpret", "(II)Z")); // invokevirtual
+                int next = branch(0x9a); // ifne
+                pushInt(i + 1);
+                op(0xac); // ireturn
+                patch(next);
+                loadRegisters();
+                from = i + 1;
+            }
+            storeRegisters();
+            addSteps(pendingSteps);
+            int last = this.block.length - 1;
+            if (isCompiled(this.block.opcodes[last])) {
+                setPc(this.block.nextPcs[last]);
+                op(0x2a); // aload_0
+                pushInt(from);
+                pushInt(last);
+                op(0xb6).u2(this.cls.methodRef(BASE_CLASS, "finish", "(II)V")); // invokevirtual
+            }
+            pushInt(this.block.length);
+            op(0xac); // ireturn
+            return this;
+        }
+
+        private void compileInstruction(int op, int arg0, int arg1) throws IOException {
+            int mMask = this.mWidth ? 0xff : 0xffff;
+            int xMask = this.indexWidth ? 0xff : 0xffff;
+            // Moves the sign bit to bit 31, for CpuState.negativeResult
+            int mShift = this.mWidth ? 24 : 16;
+            int xShift = this.indexWidth ? 24 : 16;
+            int mImmediate = this.mWidth ? arg0 : Utils.address(arg0, arg1);
+            int xImmediate = this.indexWidth ? arg0 : Utils.address(arg0, arg1);
+            switch (op) {
+                case 0x18: // CLC
+                    setFlag("carryFlag", false);
+                    break;
+                case 0x38: // SEC
+                    setFlag("carryFlag", true);
+                    break;
+                case 0x78: // SEI
+                    setFlag("irqDisableFlag", true);
+                    break;
+                case 0xb8: // CLV
+                    setFlag("overflowFlag", false);
+                    break;
+                case 0xd8: // CLD
+                    setFlag("decimalModeFlag", false);
+                    break;
+                case 0xf8: // SED
+                    setFlag("decimalModeFlag", true);
+                    break;
+                case 0xea: // NOP
+                    break;
+                case 0x88: // DEY
+                    increment(LOCAL_Y, -1, xMask, xShift);
+                    break;
+                case 0xc8: // INY
+                    increment(LOCAL_Y, 1, xMask, xShift);
+                    break;
+                case 0xca: // DEX
+                    increment(LOCAL_X, -1, xMask, xShift);
+                    break;
+                case 0xe8: // INX
+                    increment(LOCAL_X, 1, xMask, xShift);
+                    break;
+                case 0x1a: // INC A
+                    increment(LOCAL_A, 1, mMask, mShift);
+                    break;
+                case 0x3a: // DEC A
+                    increment(LOCAL_A, -1, mMask, mShift);
+                    break;
+                case 0x8a: // TXA
+                    transfer(LOCAL_X, LOCAL_A, mShift);
+                    break;
+                case 0x98: // TYA
+                    transfer(LOCAL_Y, LOCAL_A, mShift);
+                    break;
+                case 0xa8: // TAY
+                    transfer(LOCAL_A, LOCAL_Y, xShift);
+                    break;
+                case 0xaa: // TAX
+                    transfer(LOCAL_A, LOCAL_X, xShift);
+                    break;
+                case 0x9b: // TXY
+                    transfer(LOCAL_X, LOCAL_Y, xShift);
+                    break;
+                case 0xbb: // TYX
+                    transfer(LOCAL_Y, LOCAL_X, xShift);
+                    break;
+                case 0xa9: // LDA #
+                    load(LOCAL_A, mImmediate, mShift);
+                    break;
+                case 0xa2: // LDX #
+                    load(LOCAL_X, xImmediate, xShift);
+                    break;
+                case 0xa0: // LDY #
+                    load(LOCAL_Y, xImmediate, xShift);
+                    break;
+                case 0x09: // ORA #
+                    logical(0x80, mImmediate, mShift); // ior
+                    break;
+                case 0x29: // AND #
+                    logical(0x7e, mImmediate, mShift); // iand
+                    break;
+                case 0x49: // EOR #
+                    logical(0x82, mImmediate, mShift); // ixor
+                    break;
+                default:
+                    throw new IllegalArgumentException("Opcode cannot be recompiled: " + op);
+            }
+        }
+
+        private void increment(int register, int amount, int mask, int shift) throws IOException {
+            op(0x15).op(register); // iload
+            pushInt(amount);
+            op(0x60); // iadd
+            pushInt(mask);
+            op(0x7e); // iand
+            op(0x36).op(register); // istore
+            arithmeticFlags(register, shift);
+        }
+
+        private void transfer(int from, int to, int shift) throws IOException {
+            op(0x15).op(from); // iload
+            op(0x36).op(to); // istore
+            arithmeticFlags(to, shift);
+        }
+
+        private void load(int register, int value, int shift) throws IOException {
+            pushInt(value);
+            op(0x36).op(register); // istore
+            setResult("zeroResult", value);
+            setResult("negativeResult", value << shift);
+        }
+
+        private void logical(int operation, int value, int shift) throws IOException {
+            op(0x15).op(LOCAL_A); // iload
+            pushInt(value);
+            op(operation);
+            op(0x36).op(LOCAL_A); // istore
+            arithmeticFlags(LOCAL_A, shift);
+        }
+
+        private void arithmeticFlags(int register, int shift) throws IOException {
+            // state.zeroResult = register
+            op(0x2b); // aload_1
+            op(0x15).op(register); // iload
+            op(0xb5).u2(this.cls.fieldRef(STATE_CLASS, "zeroResult", "I")); // putfield
+            // state.negativeResult = register << shift
+            op(0x2b); // aload_1
+            op(0x15).op(register); // iload
+            pushInt(shift);
+            op(0x78); // ishl
+            op(0xb5).u2(this.cls.fieldRef(STATE_CLASS, "negativeResult", "I")); // putfield
+        }
+
+        private void setResult(String field, int value) throws IOException {
+            op(0x2b); // aload_1
+            pushInt(value);
+            op(0xb5).u2(this.cls.fieldRef(STATE_CLASS, field, "I")); // putfield
+        }
+
+        private void setFlag(String flag, boolean value) throws IOException {
+            op(0x2b); // aload_1
+            op(value ? 0x04 : 0x03); // iconst_1 / iconst_0
+            op(0xb5).u2(this.cls.fieldRef(STATE_CLASS, flag, "Z")); // putfield
+        }
+
+        private void setPc(int pc) throws IOException {
+            op(0x2b); // aload_1
+            pushInt(pc);
+            op(0xb5).u2(this.cls.fieldRef(STATE_CLASS, "pc", "I")); // putfield
+        }
+
+        private void addSteps(int steps) throws IOException {
+            if (steps == 0) {
+                return;
+            }
+            int field = this.cls.fieldRef(STATE_CLASS, "stepCounter", "J");
+            op(0x2b); // aload_1
+            op(0x59); // dup
+            op(0xb4).u2(field); // getfield
+            pushInt(steps);
+            op(0x85); // i2l
+            op(0x61); // ladd
+            op(0xb5).u2(field); // putfield
+        }
+
+        private void loadRegisters() throws IOException {
+            loadRegister("a", LOCAL_A);
+            loadRegister("x", LOCAL_X);
+            loadRegister("y", LOCAL_Y);
+        }
+
+        private void loadRegister(String field, int local) throws IOException {
+            op(0x2b); // aload_1
+            op(0xb4).u2(this.cls.fieldRef(STATE_CLASS, field, "I")); // getfield
+            op(0x36).op(local); // istore
+        }
+
+        private void storeRegisters() throws IOException {
+            storeRegister("a", LOCAL_A);
+            storeRegister("x", LOCAL_X);
+            storeRegister("y", LOCAL_Y);
+        }
+
+        private void storeRegister(String field, int local) throws IOException {
+            op(0x2b); // aload_1
+            op(0x15).op(local); // iload
+            op(0xb5).u2(this.cls.fieldRef(STATE_CLASS, field, "I")); // putfield
+        }
+
+        private void pushInt(int value) throws IOException {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value); // iconst_<n>
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(0x10).op(value); // bipush
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(0x11).u2(value); // sipush
+            } else {
+                op(0x13).u2(this.cls.integer(value)); // ldc_w
+            }
+        }
+    }
+
+}
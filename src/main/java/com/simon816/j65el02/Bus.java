@@ -19,24 +19,72 @@
 
 package com.simon816.j65el02;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.IntConsumer;
 
 import com.simon816.j65el02.device.Device;
+import com.simon816.j65el02.device.Memory;
 import com.simon816.j65el02.device.RedBus;
 
 public class Bus {
 
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_COUNT = 0x100;
+
     private final RedBus redBus;
     private final List<Device> devices;
 
     private int[] boundaries;
 
+    /*
+     * Page table mapping each 256 byte page to the device that owns all of it. Pages that are
+     * shared between devices (or lie outside every device) have no entry and are resolved by
+     * findDevice instead.
+     */
+    private final Device[] pageDevices = new Device[PAGE_COUNT];
+    private final int[] pageOffsets = new int[PAGE_COUNT];
+
+    /*
+     * Backing arrays for pages owned by plain RAM, which are read and written directly instead of
+     * going through the device.
+     */
+    private final byte[][] ramPages = new byte[PAGE_COUNT][];
+
+    /*
+     * RAM pages that can be read directly, which is all of them apart from pages being watched
+     * for reads.
+     */
+    private final byte[][] readableRamPages = new byte[PAGE_COUNT][];
+
+    /*
+     * RAM pages that can be written directly. Pages holding decoded code are left out so that
+     * writes to them take the slow path and invalidate the code, as are memory pages that are not
+     * writable so that the memory copies or marks them first, and pages being watched for writes.
+     */
+    private final byte[][] writableRamPages = new byte[PAGE_COUNT][];
+    private final boolean[] codePages = new boolean[PAGE_COUNT];
+    private IntConsumer codeWriteListener;
+
+    /* Pages with a watchpoint on them, see setWatchPage */
+    private final boolean[] readWatchPages = new boolean[PAGE_COUNT];
+    private final boolean[] writeWatchPages = new boolean[PAGE_COUNT];
+    private WatchListener watchListener;
+
+    /* Number of reads and writes by the CPU that went to a device rather than RAM */
+    private long deviceAccesses;
+
     public Bus(RedBus redBus) {
         this.redBus = redBus;
         this.devices = new ArrayList<>();
         this.boundaries = new int[0];
+        this.redBus.setMapChangeListener(this::rebuildPageTable);
+        rebuildPageTable();
     }
 
     public void addDevice(Device device) {
@@ -47,18 +95,296 @@ public class Bus {
         Arrays.sort(newBoundaries);
         this.devices.sort((a, b) -> a.startAddress() - b.startAddress());
         this.boundaries = newBoundaries;
+        device.setMapChangeListener(this::rebuildPageTable);
+        if (device instanceof Memory) {
+            Memory memory = (Memory) device;
+            memory.setPageChangeListener(page -> updateRamPage(memory, page));
+        }
+        rebuildPageTable();
+    }
+
+    /**
+     * Gets the devices on the bus, not including the RedBus, in address order.
+     */
+    List<Device> getDevices() {
+        return Collections.unmodifiableList(this.devices);
     }
 
     public void write(int address, int data) {
+        int page = address >>> PAGE_SHIFT;
+        if (page < PAGE_COUNT) {
+            byte[] ram = this.writableRamPages[page];
+            if (ram == null && this.codePages[page]) {
+                this.codeWriteListener.accept(page);
+                ram = this.writableRamPages[page];
+            }
+            if (ram != null) {
+                ram[address & 0xff] = (byte) data;
+                return;
+            }
+            if (this.writeWatchPages[page]) {
+                this.watchListener.onWrite(address, data);
+            }
+            Device device = this.pageDevices[page];
+            if (device != null) {
+                if (this.ramPages[page] == null) {
+                    this.deviceAccesses++;
+                }
+                device.write(address - this.pageOffsets[page], data);
+                return;
+            }
+        }
+        this.deviceAccesses++;
         Device device = findDevice(address);
         device.write(address - device.startAddress(), data);
     }
 
     public int read(int address, boolean cpuAccess) {
+        int page = address >>> PAGE_SHIFT;
+        if (page < PAGE_COUNT) {
+            byte[] ram = this.readableRamPages[page];
+            if (ram != null) {
+                return ram[address & 0xff] & 0xff;
+            }
+            if (this.readWatchPages[page] && cpuAccess) {
+                int data = readPage(page, address, cpuAccess);
+                this.watchListener.onRead(address, data);
+                return data;
+            }
+            return readPage(page, address, cpuAccess);
+        }
+        return readMapped(address, cpuAccess);
+    }
+
+    /**
+     * Reads an instruction byte for the CPU. Unlike {@link #read}, this does not notify the watch
+     * listener, as read watchpoints only cover data accesses.
+     *
+     * @param address The address to read
+     * @return The byte at the address
+     */
+    int fetch(int address) {
+        int page = address >>> PAGE_SHIFT;
+        if (page < PAGE_COUNT) {
+            byte[] ram = this.readableRamPages[page];
+            if (ram != null) {
+                return ram[address & 0xff] & 0xff;
+            }
+            return readPage(page, address, true);
+        }
+        return readMapped(address, true);
+    }
+
+    private int readPage(int page, int address, boolean cpuAccess) {
+        byte[] ram = this.ramPages[page];
+        if (ram != null) {
+            return ram[address & 0xff] & 0xff;
+        }
+        Device device = this.pageDevices[page];
+        if (device != null) {
+            if (cpuAccess) {
+                this.deviceAccesses++;
+            }
+            return device.read(address - this.pageOffsets[page], cpuAccess) & 0xff;
+        }
+        return readMapped(address, cpuAccess);
+    }
+
+    private int readMapped(int address, boolean cpuAccess) {
+        // Peeks have no side effects, so peripherals do not need updating after them
+        if (cpuAccess) {
+            this.deviceAccesses++;
+        }
         Device device = findDevice(address);
         return device.read(address - device.startAddress(), cpuAccess) & 0xff;
     }
 
+    /**
+     * Reads a byte without any side effects, for debugging. Devices are read with the cpuAccess
+     * flag cleared, which tells them not to change any state.
+     *
+     * @param address The address to read
+     * @return The byte at the address
+     */
+    public int peek(int address) {
+        return read(address, false);
+    }
+
+    /**
+     * Whether the given page is backed by plain RAM, and so can be read without side effects.
+     *
+     * @param page The page number
+     * @return True if the page is RAM
+     */
+    public boolean isRamPage(int page) {
+        return this.ramPages[page] != null;
+    }
+
+    /**
+     * Sets the function called when a page marked with {@link #setCodePage} is written to, or
+     * when the memory map changes underneath it. The function is called with the page number
+     * before the write happens, and is expected to clear the mark.
+     *
+     * @param listener The listener
+     */
+    public void setCodeWriteListener(IntConsumer listener) {
+        this.codeWriteListener = listener;
+    }
+
+    /**
+     * Marks or unmarks a page as holding decoded code, see {@link #setCodeWriteListener}.
+     *
+     * @param page The page number
+     * @param code Whether the page holds decoded code
+     */
+    public void setCodePage(int page, boolean code) {
+        this.codePages[page] = code;
+        this.writableRamPages[page] = getWritableRamPage(page);
+    }
+
+    /**
+     * Sets the function told about CPU reads and all writes to pages marked with
+     * {@link #setWatchPage}. It is called with the address and data, before a write happens and
+     * after a read.
+     *
+     * @param listener The listener
+     */
+    public void setWatchListener(WatchListener listener) {
+        this.watchListener = listener;
+    }
+
+    /**
+     * Marks or unmarks a page as being watched, see {@link #setWatchListener}. Accesses to watched
+     * RAM take the slow path, so other pages run at full speed.
+     *
+     * @param page The page number
+     * @param read Whether reads are watched
+     * @param write Whether writes are watched
+     */
+    public void setWatchPage(int page, boolean read, boolean write) {
+        this.readWatchPages[page] = read;
+        this.writeWatchPages[page] = write;
+        this.readableRamPages[page] = getReadableRamPage(page);
+        this.writableRamPages[page] = getWritableRamPage(page);
+    }
+
+    /**
+     * Gets the number of reads and writes so far that went to a device rather than to RAM.
+     */
+    long getDeviceAccesses() {
+        return this.deviceAccesses;
+    }
+
+    /**
+     * Copies the contents of every RAM page.
+     *
+     * @return The pages, indexed by page number, with null for pages that are not RAM
+     */
+    byte[][] copyRam() {
+        byte[][] copy = new byte[PAGE_COUNT][];
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            if (this.ramPages[page] != null) {
+                copy[page] = this.ramPages[page].clone();
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Puts back RAM contents saved by {@link #copyRam}. Code pages are not notified.
+     *
+     * @param copy The saved pages
+     */
+    void restoreRam(byte[][] copy) {
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            // Pages that were not written may still be shared, and are left alone
+            if (copy[page] != null && this.ramPages[page] != null
+                    && !Arrays.equals(copy[page], this.ramPages[page])) {
+                System.arraycopy(copy[page], 0, this.ramPages[page], 0, copy[page].length);
+            }
+        }
+    }
+
+    /**
+     * Writes the size of every device, then the state of every device in address order, followed
+     * by the RedBus.
+     *
+     * @param out The output
+     * @throws IOException If the output fails
+     */
+    public void saveState(DataOutput out) throws IOException {
+        writeDevices(out);
+        for (Device device : this.devices) {
+            device.saveState(out);
+        }
+        this.redBus.saveState(out);
+    }
+
+    /**
+     * Like {@link #saveState}, but with each device writing only its changes since the last
+     * delta.
+     *
+     * @param out The output
+     * @throws IOException If the output fails
+     */
+    public void saveDelta(DataOutput out) throws IOException {
+        writeDevices(out);
+        for (Device device : this.devices) {
+            device.saveDelta(out);
+        }
+        this.redBus.saveDelta(out);
+    }
+
+    /**
+     * Restores the state written by {@link #saveState}. The same devices must be attached, which
+     * is checked before any device is changed.
+     *
+     * @param in The input
+     * @throws IOException If the input fails or the devices do not match
+     */
+    public void loadState(DataInput in) throws IOException {
+        checkDevices(in);
+        for (Device device : this.devices) {
+            device.loadState(in);
+        }
+        this.redBus.loadState(in);
+    }
+
+    /**
+     * Applies changes written by {@link #saveDelta}.
+     *
+     * @param in The input
+     * @throws IOException If the input fails or the devices do not match
+     */
+    public void loadDelta(DataInput in) throws IOException {
+        checkDevices(in);
+        for (Device device : this.devices) {
+            device.loadDelta(in);
+        }
+        this.redBus.loadDelta(in);
+    }
+
+    private void writeDevices(DataOutput out) throws IOException {
+        out.writeShort(this.devices.size());
+        for (Device device : this.devices) {
+            out.writeInt(device.getSize());
+        }
+    }
+
+    private void checkDevices(DataInput in) throws IOException {
+        int count = in.readUnsignedShort();
+        if (count != this.devices.size()) {
+            throw new IOException("Snapshot has " + count + " devices, bus has " + this.devices.size());
+        }
+        for (int i = 0; i < count; i++) {
+            int size = in.readInt();
+            if (size != this.devices.get(i).getSize()) {
+                throw new IOException("Snapshot device " + i + " has size " + size + ", bus has "
+                        + this.devices.get(i).getSize());
+            }
+        }
+    }
+
     public RedBus getRedBus() {
         return this.redBus;
     }
@@ -72,6 +398,10 @@ public class Bus {
         if (this.redBus.inRange(address)) {
             return this.redBus;
         }
+        return findMappedDevice(address);
+    }
+
+    private Device findMappedDevice(int address) {
         int idx = Arrays.binarySearch(this.boundaries, address);
         if (idx < 0) {
             idx = -idx - 2;
@@ -79,5 +409,84 @@ public class Bus {
         return this.devices.get(idx);
     }
 
+    /**
+     * Recalculates the owner of every page. Called whenever a device is added or a device moves,
+     * such as when the RedBus window offset is changed by the MMU. Any decoded code is
+     * invalidated as the memory underneath it may have changed.
+     */
+    private void rebuildPageTable() {
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            int first = page << PAGE_SHIFT;
+            int last = first | (PAGE_COUNT - 1);
+            Device device = null;
+            boolean redBusFirst = this.redBus.inRange(first);
+            boolean redBusLast = this.redBus.inRange(last);
+            if (redBusFirst && redBusLast) {
+                device = this.redBus;
+            } else if (!redBusFirst && !redBusLast && !this.devices.isEmpty()
+                    && first >= this.boundaries[0]) {
+                // The RedBus window is the same size as a page, so any overlap would include
+                // the first or last address of the page.
+                Device firstDevice = findMappedDevice(first);
+                if (firstDevice == findMappedDevice(last)) {
+                    device = firstDevice;
+                }
+            }
+            this.pageDevices[page] = device;
+            this.pageOffsets[page] = device == null ? 0 : device.startAddress();
+            this.ramPages[page] = device instanceof Memory ? getRamPage((Memory) device, first) : null;
+            this.readableRamPages[page] = getReadableRamPage(page);
+            this.writableRamPages[page] = getWritableRamPage(page);
+            if (this.codePages[page]) {
+                this.codeWriteListener.accept(page);
+            }
+        }
+    }
+
+    /**
+     * Updates the entries for a single page of memory after its writability or backing array
+     * changed. The contents are unchanged, so decoded code is kept.
+     */
+    private void updateRamPage(Memory memory, int memoryPage) {
+        int first = memory.startAddress() + memoryPage * Memory.PAGE_SIZE;
+        int page = first >>> PAGE_SHIFT;
+        if (page < PAGE_COUNT && this.pageDevices[page] == memory) {
+            this.ramPages[page] = getRamPage(memory, first);
+            this.readableRamPages[page] = getReadableRamPage(page);
+            this.writableRamPages[page] = getWritableRamPage(page);
+        }
+    }
+
+    private byte[] getReadableRamPage(int page) {
+        return this.readWatchPages[page] ? null : this.ramPages[page];
+    }
+
+    private byte[] getWritableRamPage(int page) {
+        byte[] ram = this.ramPages[page];
+        if (ram == null || this.codePages[page] || this.writeWatchPages[page]) {
+            return null;
+        }
+        Memory memory = (Memory) this.pageDevices[page];
+        int memoryPage = ((page << PAGE_SHIFT) - this.pageOffsets[page]) / Memory.PAGE_SIZE;
+        return memory.isWritable(memoryPage) ? ram : null;
+    }
+
+    private static byte[] getRamPage(Memory memory, int address) {
+        int offset = address - memory.startAddress();
+        if ((offset & (Memory.PAGE_SIZE - 1)) != 0) {
+            return null;
+        }
+        return memory.getPage(offset / Memory.PAGE_SIZE);
+    }
+
+    /**
+     * Receives accesses to watched pages.
+     */
+    public interface WatchListener {
+
+        void onRead(int address, int data);
+
+        void onWrite(int address, int data);
+    }
 
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.simon816.j65el02;
+
+/**
+ * The base class of blocks recompiled into JVM classes by the {@link BlockCompiler}.
+ *
+ * <p>
+ * This is only public so that the generated classes, which live in their own class loader, can
+ * extend it. It cannot be used outside of the CPU.
+ * </p>
+ */
+public abstract class CompiledBlock {
+
+    private Cpu cpu;
+    private BlockCache.Block block;
+
+    protected CompiledBlock() {
+    }
+
+    final void init(Cpu cpu, BlockCache.Block block) {
+        this.cpu = cpu;
+        this.block = block;
+    }
+
+    /**
+     * Executes the block. The first instruction has already been started by the CPU.
+     *
+     * @param state The state of the CPU running the block
+     * @return The number of instructions executed
+     */
+    public abstract int execute(CpuState state);
+
+    /**
+     * Executes an instruction of the block with the interpreter. The registers and program
+     * counter in the state must be up to date.
+     *
+     * @param from The index after the previous instruction that was not recompiled
+     * @param index The index of the instruction in the block
+     * @return Whether the rest of the block can still be executed
+     */
+    protected final boolean interpret(int from, int index) {
+        this.cpu.skipBlockInstructions(this.block, from, index);
+        return this.cpu.interpretBlockInstruction(this.block, index);
+    }
+
+    /**
+     * Fills in the parts of the state that recompiled instructions do not keep up to date, as if
+     * the given instruction was the last one executed.
+     *
+     * @param from The index after the last instruction that was not recompiled
+     * @param index The index of the last instruction in the block
+     */
+    protected final void finish(int from, int index) {
+        this.cpu.skipBlockInstructions(this.block, from, index + 1);
+        this.cpu.finishBlockInstruction(this.block, index);
+    }
+
+}
@@ -25,6 +25,10 @@
 
 package com.simon816.j65el02;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.function.IntConsumer;
 
 /**
@@ -60,6 +64,12 @@ public class Cpu implements InstructionTable {
     public static final int P_OVERFLOW    = 0x40;
     public static final int P_NEGATIVE    = 0x80;
 
+    /**
+     * The most instructions that a single call to {@link #stepBlock} can execute: a full block
+     * followed by a fused ENT.
+     */
+    static final int MAX_STEP_BLOCK_INSTRUCTIONS = BlockCache.MAX_BLOCK_LENGTH + 1;
+
     private static final int S_STACK_TOP = 0x200;
     private static final int R_STACK_TOP = 0x300;
 
@@ -71,18 +81,70 @@ public class Cpu implements InstructionTable {
     /* The CPU state */
     private final CpuState state = new CpuState();
 
+    /* Decoded blocks for stepBlock, created with the bus */
+    private BlockCache blockCache;
+
+    /*
+     * Values that depend on the register widths, worked out by updateWidths whenever the
+     * emulation, M or X flags change rather than on every access
+     */
+    private int widthIndex;
+    private int[] instructionSizes;
+    private int mMask;
+    private int xMask;
+    private int mNegative;
+    private int mShift;
+    private int xShift;
+    private boolean mWord;
+    private boolean xWord;
+
     private IntConsumer logCallback;
 
+    private TraceBuffer traceBuffer;
+
+    private Profiler profiler;
+
+    private Debugger debugger;
+
+    /*
+     * Whether a trace buffer, profiler or debugger with breakpoints is attached, so the plain paths
+     * only check once per block
+     */
+    private boolean instrumented;
+
+    private RecompilerMode recompilerMode = RecompilerMode.DISABLED;
+
+    /**
+     * Whether {@link Cpu#stepBlock} recompiles hot blocks into JVM bytecode.
+     */
+    public enum RecompilerMode {
+        /**
+         * Blocks are always interpreted.
+         */
+        DISABLED,
+        /**
+         * Hot blocks are recompiled and the recompiled code is run instead of the interpreter.
+         */
+        ENABLED,
+        /**
+         * Hot blocks are recompiled, and each run of a recompiled block is checked against the
+         * interpreter. This is slow, and is meant for finding bugs in the recompiler.
+         */
+        VERIFY
+    }
+
     /**
      * Construct a new CPU.
      */
     public Cpu() {
+        updateWidths();
     }
     /**
      * Set the bus reference for this CPU.
      */
     public void setBus(Bus bus) {
         this.bus = bus;
+        this.blockCache = new BlockCache(bus);
     }
 
     /**
@@ -102,6 +164,52 @@ public class Cpu implements InstructionTable {
         this.logCallback = logCallback;
     }
 
+    /**
+     * Sets whether {@link #stepBlock} recompiles hot blocks. Defaults to
+     * {@link RecompilerMode#DISABLED}.
+     *
+     * @param recompilerMode The new mode
+     */
+    public void setRecompilerMode(RecompilerMode recompilerMode) {
+        this.recompilerMode = recompilerMode;
+    }
+
+    /**
+     * Sets the buffer that a record of every instruction is added to. Recompiled blocks are not
+     * run while tracing, as they do not stop between instructions.
+     *
+     * @param traceBuffer The buffer, or null to stop tracing
+     */
+    public void setTraceBuffer(TraceBuffer traceBuffer) {
+        this.traceBuffer = traceBuffer;
+        updateInstrumented();
+    }
+
+    /**
+     * Sets the profiler that every instruction is counted by. As with tracing, recompiled blocks
+     * are not run while profiling.
+     *
+     * @param profiler The profiler, or null to stop profiling
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        updateInstrumented();
+    }
+
+    void setDebugger(Debugger debugger) {
+        this.debugger = debugger;
+        updateInstrumented();
+    }
+
+    /**
+     * Checks again whether instructions need to be instrumented, after the attached debugger
+     * gained or lost its breakpoints.
+     */
+    void updateInstrumented() {
+        this.instrumented = this.traceBuffer != null || this.profiler != null
+                || this.debugger != null && this.debugger.isActive();
+    }
+
     public void setStackBug(boolean stackBug) {
         this.stackBug = stackBug;
     }
@@ -122,15 +230,16 @@ public class Cpu implements InstructionTable {
 
         // Clear status register bits.
         this.state.carryFlag = false;
-        this.state.zeroFlag = false;
+        this.state.setZeroFlag(false);
         this.state.irqDisableFlag = false;
         this.state.decimalModeFlag = false;
         this.state.breakFlag = false;
         this.state.overflowFlag = false;
-        this.state.negativeFlag = false;
+        this.state.setNegativeFlag(false);
         this.state.emulationFlag = true;
         this.state.mWidthFlag = true;
         this.state.indexWidthFlag = true;
+        updateWidths();
 
         this.state.irqAsserted = false;
 
@@ -151,30 +260,53 @@ public class Cpu implements InstructionTable {
         // Default BRK address
         this.state.brk = 0x2000;
 
-        peekAhead();
+        if (this.blockCache != null) {
+            this.blockCache.flush();
+        }
+    }
+
+    /**
+     * Recomputes the values that depend on the register widths. This is done by the CPU whenever it
+     * changes the emulation, M or X flags, and must be called after changing them directly in the
+     * state returned by {@link #getCpuState}.
+     */
+    public void updateWidths() {
+        this.widthIndex = DecodeTable.widthIndex(this.state.mWidthFlag, this.state.indexWidthFlag);
+        this.instructionSizes = DecodeTable.instructionSizes[this.widthIndex];
+        this.mMask = this.state.mWidthFlag ? 0xff : 0xffff;
+        this.xMask = this.state.indexWidthFlag ? 0xff : 0xffff;
+        this.mNegative = this.state.mWidthFlag ? 0x80 : 0x8000;
+        // Moves the sign bit to bit 31, for CpuState.negativeResult
+        this.mShift = this.state.mWidthFlag ? 24 : 16;
+        this.xShift = this.state.indexWidthFlag ? 24 : 16;
+        this.mWord = !this.state.emulationFlag && !this.state.mWidthFlag;
+        this.xWord = !this.state.emulationFlag && !this.state.indexWidthFlag;
     }
 
     private int maskMWidth() {
-        return this.state.mWidthFlag ? 0xff : 0xffff;
+        return this.mMask;
     }
 
     private int maskXWidth() {
-        return this.state.indexWidthFlag ? 0xff : 0xffff;
+        return this.xMask;
     }
 
     private int negativeMWidth() {
-        return this.state.mWidthFlag ? 0x80 : 0x8000;
+        return this.mNegative;
     }
 
-    private int negativeXWidth() {
-        return this.state.indexWidthFlag ? 0x80 : 0x8000;
+    /**
+     * Whether memory accesses for the accumulator or index registers are 16 bits wide.
+     */
+    private boolean isWord(boolean x) {
+        return x ? this.xWord : this.mWord;
     }
 
     private int readMemory(int address, boolean x) {
-        if (this.state.emulationFlag || (x ? this.state.indexWidthFlag : this.state.mWidthFlag)) {
-            return readByte(address);
+        if (isWord(x)) {
+            return readWord(address);
         }
-        return readWord(address);
+        return readByte(address);
     }
 
     private int readByte(int address) {
@@ -187,20 +319,14 @@ public class Cpu implements InstructionTable {
 
     private void writeMemory(int address, int value, boolean x) {
         this.bus.write(address, value);
-        boolean flag = x ? this.state.indexWidthFlag : this.state.mWidthFlag;
-        if (!this.state.emulationFlag && !flag) {
+        if (isWord(x)) {
             this.bus.write(address + 1, value >>> 8);
         }
     }
 
     private int immediateArgs(boolean x) {
-        if (!this.state.emulationFlag) {
-            if (x && !this.state.indexWidthFlag) {
-                return Utils.address(this.state.args[0], this.state.args[1]);
-            }
-            if (!x && !this.state.mWidthFlag) {
-                return Utils.address(this.state.args[0], this.state.args[1]);
-            }
+        if (isWord(x)) {
+            return Utils.address(this.state.args[0], this.state.args[1]);
         }
         return this.state.args[0];
     }
@@ -212,6 +338,266 @@ public class Cpu implements InstructionTable {
         if (this.state.signalStop) {
             return;
         }
+        beginInstruction();
+        if (this.instrumented) {
+            instrumentStep();
+            return;
+        }
+        fetch();
+        execute();
+    }
+
+    /**
+     * Performs the instruction cycles of a whole block of straight-line code. The block is decoded
+     * on first use and then cached, so the instructions are not fetched through the bus again
+     * until the memory holding them is written to.
+     *
+     * <p>
+     * The CPU state after each instruction is the same as if it had been run by {@link #step}. The
+     * block ends early if it modifies itself, the processor is stopped or an interrupt is raised.
+     * </p>
+     *
+     * <p>
+     * Hot blocks may also be recompiled into JVM bytecode, see {@link #setRecompilerMode}. The
+     * state at the end of a recompiled block is still the same as with {@link #step}.
+     * </p>
+     *
+     * @return The number of instructions executed
+     */
+    public int stepBlock() {
+        if (this.state.signalStop) {
+            return 0;
+        }
+        beginInstruction();
+        BlockCache.Block block = this.blockCache.get(this.state.pc, this.widthIndex);
+        if (block == null) {
+            // Not in RAM, or an instruction crosses a page boundary
+            if (this.instrumented) {
+                return instrumentStep();
+            }
+            fetch();
+            execute();
+            return 1;
+        }
+        int count = runBlock(block);
+        if (count == block.length && block.opcodes[count - 1] == 0x02 // NXT
+                && !this.state.signalStop && !interruptPending()) {
+            count += enterWord();
+        }
+        return count;
+    }
+
+    private int runBlock(BlockCache.Block block) {
+        if (this.instrumented) {
+            return instrumentBlock(block);
+        }
+        if (this.recompilerMode != RecompilerMode.DISABLED && !interruptPending()) {
+            CompiledBlock compiled = block.compiled;
+            if (compiled == null && this.blockCache.shouldCompile(block)) {
+                compiled = block.compiled = BlockCompiler.compile(this, block);
+            }
+            if (compiled != null) {
+                if (this.recompilerMode == RecompilerMode.VERIFY) {
+                    return verifyCompiledBlock(block, compiled);
+                }
+                return compiled.execute(this.state);
+            }
+        }
+        return interpretBlock(block);
+    }
+
+    /**
+     * Fast path for the Forth inner interpreter. When NXT lands on the ENT at the start of a colon
+     * definition, the ENT is run straight away as part of the same transition, without going
+     * through the block cache. This covers both NXT from a code word and the RLI, NXT sequence
+     * that ends a colon definition.
+     *
+     * @return The number of instructions executed, 1 if an ENT was run, otherwise 0
+     */
+    private int enterWord() {
+        int pc = this.state.pc;
+        if (!this.bus.isRamPage(pc >> 8) || this.bus.peek(pc) != 0x22) { // ENT
+            return 0;
+        }
+        if (this.instrumented && breakBeforeInstruction()) {
+            return 0;
+        }
+        // The same as step would do for ENT
+        int next = (pc + 1) & 0xffff;
+        this.state.lastPc = pc;
+        this.state.ir = 0x22;
+        this.state.instSize = this.instructionSizes[0x22];
+        this.state.opTrap = false;
+        this.state.stepCounter++;
+        stackRPushWord(this.state.i);
+        this.state.i = next + 2;
+        this.state.pc = readMemory(next, false);
+        if (this.instrumented) {
+            instrumentInstruction();
+        }
+        return 1;
+    }
+
+    private int interpretBlock(BlockCache.Block block) {
+        int count = 0;
+        boolean more;
+        do {
+            more = interpretBlockInstruction(block, count);
+            count++;
+        } while (more && count < block.length);
+        return count;
+    }
+
+    private int instrumentStep() {
+        if (breakBeforeInstruction()) {
+            return 0;
+        }
+        fetch();
+        execute();
+        instrumentInstruction();
+        return 1;
+    }
+
+    private int instrumentBlock(BlockCache.Block block) {
+        int count = 0;
+        boolean more;
+        do {
+            if (breakBeforeInstruction()) {
+                break;
+            }
+            more = interpretBlockInstruction(block, count);
+            instrumentInstruction();
+            count++;
+            // The debugger stops the processor on a watchpoint
+        } while (more && !this.state.signalStop && count < block.length);
+        return count;
+    }
+
+    private boolean breakBeforeInstruction() {
+        return this.debugger != null && this.debugger.breakBefore(this.state);
+    }
+
+    private void instrumentInstruction() {
+        if (this.traceBuffer != null) {
+            this.traceBuffer.record(this.state);
+        }
+        if (this.profiler != null) {
+            this.profiler.record(this.state);
+        }
+        if (this.debugger != null) {
+            this.debugger.afterInstruction(this.state);
+        }
+    }
+
+    /**
+     * Executes an instruction of a decoded block. The program counter must be the address of the
+     * instruction.
+     *
+     * @param block The block
+     * @param index The index of the instruction in the block
+     * @return Whether the next instruction of the block can follow straight on
+     */
+    boolean interpretBlockInstruction(BlockCache.Block block, int index) {
+        this.state.lastPc = this.state.pc;
+        loadBlockInstruction(block, index);
+        this.state.pc = block.nextPcs[index];
+        clearOpTrap();
+        execute();
+        // Interrupts are handled at the start of the next block
+        return block.valid && !this.state.signalStop && !interruptPending();
+    }
+
+    /**
+     * Brings the operands in the state up to date after a run of recompiled instructions, which do
+     * not keep them up to date.
+     *
+     * @param block The block
+     * @param from The index of the first recompiled instruction
+     * @param to The index after the last recompiled instruction
+     */
+    void skipBlockInstructions(BlockCache.Block block, int from, int to) {
+        // Operands are left over from the last instruction that had them
+        for (int i = from; i < to; i++) {
+            copyBlockArgs(block, i, this.state.args);
+        }
+    }
+
+    /**
+     * Brings the debugging state up to date at the end of a recompiled block, as if the given
+     * instruction had just been executed by the interpreter. The program counter must already be
+     * set.
+     *
+     * @param block The block
+     * @param index The index of the instruction in the block
+     */
+    void finishBlockInstruction(BlockCache.Block block, int index) {
+        this.state.lastPc = index == 0 ? block.startPc : block.nextPcs[index - 1];
+        this.state.ir = block.opcodes[index];
+        this.state.instSize = block.sizes[index];
+        this.state.opTrap = false;
+    }
+
+    private static void copyBlockArgs(BlockCache.Block block, int index, int[] args) {
+        if (block.sizes[index] > 1) {
+            args[0] = block.args0[index];
+            if (block.sizes[index] > 2) {
+                args[1] = block.args1[index];
+            }
+        }
+    }
+
+    private void loadBlockInstruction(BlockCache.Block block, int index) {
+        this.state.ir = block.opcodes[index];
+        this.state.instSize = block.sizes[index];
+        copyBlockArgs(block, index, this.state.args);
+    }
+
+    /**
+     * Whether an interrupt would be taken at the start of the next instruction. An IRQ that is
+     * masked by the I flag stays asserted, but does not need to end a block.
+     */
+    private boolean interruptPending() {
+        return this.state.nmiAsserted || this.state.irqAsserted && !this.state.irqDisableFlag;
+    }
+
+    /**
+     * Runs a block with both the interpreter and the recompiled code, starting from the same state,
+     * and checks that they end up the same. Blocks that touch devices cannot be repeated, so only
+     * the interpreter is run for them.
+     */
+    private int verifyCompiledBlock(BlockCache.Block block, CompiledBlock compiled) {
+        CpuState before = new CpuState(this.state);
+        byte[][] ramBefore = this.bus.copyRam();
+        long deviceAccesses = this.bus.getDeviceAccesses();
+        int count = interpretBlock(block);
+        if (!block.valid || this.bus.getDeviceAccesses() != deviceAccesses) {
+            return count;
+        }
+        CpuState interpreted = new CpuState(this.state);
+        byte[][] ramInterpreted = this.bus.copyRam();
+        this.state.copyFrom(before);
+        updateWidths();
+        this.bus.restoreRam(ramBefore);
+        int compiledCount = compiled.execute(this.state);
+        if (compiledCount != count || !sameState(interpreted, this.state)
+                || !Arrays.deepEquals(ramInterpreted, this.bus.copyRam())) {
+            throw new IllegalStateException("Recompiled block at $" + Utils.wordToHex(block.startPc)
+                    + " differs from the interpreter:\n" + interpreted + "\n" + this.state);
+        }
+        return count;
+    }
+
+    private static boolean sameState(CpuState a, CpuState b) {
+        return a.toTraceEvent().equals(b.toTraceEvent()) && a.pc == b.pc && a.lastPc == b.lastPc
+                && a.stepCounter == b.stepCounter && a.opTrap == b.opTrap && a.signalStop == b.signalStop
+                && a.emulationFlag == b.emulationFlag && a.aTop == b.aTop
+                && Arrays.equals(a.args, b.args);
+    }
+
+    /**
+     * Records the address of the next instruction and handles any pending interrupts.
+     */
+    private void beginInstruction() {
         // Store the address from which the IR was read, for debugging
         this.state.lastPc = this.state.pc;
 
@@ -225,136 +611,40 @@ public class Cpu implements InstructionTable {
             }
             this.state.intWait = false;
         }
+    }
 
+    /**
+     * Reads the next instruction and its operands, leaving the program counter pointing to the
+     * following instruction.
+     */
+    private void fetch() {
         // Fetch memory location for this instruction.
-        this.state.ir = this.bus.read(this.state.pc, true);
-        int irAddressMode = (this.state.ir >> 2) & 0x07;  // Bits 3-5 of IR:  [ | | |X|X|X| | ]
-        int irOpMode = this.state.ir & 0x03;              // Bits 6-7 of IR:  [ | | | | | |X|X]
+        this.state.ir = this.bus.fetch(this.state.pc);
 
         incrementPC();
 
         clearOpTrap();
 
         // Decode the instruction and operands
-        this.state.instSize = this.state.getInstructionSize(this.state.ir);
+        this.state.instSize = this.instructionSizes[this.state.ir];
         for (int i = 0; i < this.state.instSize - 1; i++) {
-            this.state.args[i] = this.bus.read(this.state.pc, true);
+            this.state.args[i] = this.bus.fetch(this.state.pc);
             // Increment PC after reading
             incrementPC();
         }
+    }
 
+    /**
+     * Executes the instruction in the instruction register. The operands must already be in the
+     * args of the state and the program counter must point to the following instruction.
+     */
+    private void execute() {
         this.state.stepCounter++;
 
         // Get the data from the effective address (if any)
-        int effectiveAddress = 0;
+        int effectiveAddress = effectiveAddress(DecodeTable.addressModes[this.state.ir]);
         int tmp; // Temporary storage
 
-        switch (irOpMode) {
-            case 0:
-            case 2:
-                switch (irAddressMode) {
-                    case 0: // #Immediate
-                        break;
-                    case 1: // Zero Page
-                        effectiveAddress = this.state.args[0];
-                        break;
-                    case 2: // Accumulator - ignored
-                        break;
-                    case 3: // Absolute
-                        effectiveAddress = Utils.address(this.state.args[0], this.state.args[1]);
-                        break;
-                    case 4: // 65C02 (Zero Page)
-                        effectiveAddress = Utils.address(readByte(this.state.args[0]), readByte((this.state.args[0] + 1) & 0xff));
-                        break;
-                    case 5: // Zero Page,X / Zero Page,Y
-                        if (this.state.ir == 0x14) { // 65C02 TRB Zero Page
-                            effectiveAddress = this.state.args[0];
-                        }
-                        else if (this.state.ir == 0x96 || this.state.ir == 0xb6) {
-                            effectiveAddress = zpyAddress(this.state.args[0]);
-                        } else {
-                            effectiveAddress = zpxAddress(this.state.args[0]);
-                        }
-                        break;
-                    case 7:
-                        if (this.state.ir == 0x9c || this.state.ir == 0x1c) { // 65C02 STZ & TRB Absolute
-                            effectiveAddress = Utils.address(this.state.args[0], this.state.args[1]);
-                        }
-                        else if (this.state.ir == 0xbe) { // Absolute,X / Absolute,Y
-                            effectiveAddress = yAddress(this.state.args[0], this.state.args[1]);
-                        } else {
-                            effectiveAddress = xAddress(this.state.args[0], this.state.args[1]);
-                        }
-                        break;
-                }
-                break;
-            case 3: // Rockwell/WDC 65C02
-                switch (irAddressMode) {
-                    case 3:
-                        if (((this.state.ir >> 5) & 1) == 0) { // Zero Page
-                            effectiveAddress = this.state.args[0];
-                        } else { // Absolute
-                            effectiveAddress = Utils.address(this.state.args[0], this.state.args[1]);
-                        }
-                        break;
-                    case 7:
-                        if (((this.state.ir >> 5) & 1) == 0) { // Zero Page, X
-                            effectiveAddress = zpxAddress(this.state.args[0]);
-                        } else { // Absolute, X
-                            effectiveAddress = xAddress(this.state.args[0], this.state.args[1]);
-                        }
-                        break;
-                    case 0: // stk,S
-                        effectiveAddress = this.state.args[0] + this.state.sp & 0xffff;
-                        break;
-                    case 4: // (stk,S),Y
-                        effectiveAddress = this.state.args[0] + this.state.sp & 0xffff;
-                        effectiveAddress = yAddress(this.bus.read(effectiveAddress, true),
-                                this.bus.read(effectiveAddress + 1, true));
-                        break;
-                    case 1: // r,R
-                        effectiveAddress = this.state.args[0] + this.state.r & 0xffff;
-                        break;
-                    case 5:// (r,R),Y
-                        effectiveAddress = this.state.args[0] + this.state.r & 0xffff;
-                        effectiveAddress = yAddress(this.bus.read(effectiveAddress, true),
-                                this.bus.read(effectiveAddress + 1, true));
-                        break;
-                }
-                break;
-            case 1:
-                switch (irAddressMode) {
-                    case 0: // (Zero Page,X)
-                        tmp = (this.state.args[0] + this.state.x) & 0xff;
-                        effectiveAddress = Utils.address(this.bus.read(tmp, true), this.bus.read(tmp + 1, true));
-                        break;
-                    case 1: // Zero Page
-                        effectiveAddress = this.state.args[0];
-                        break;
-                    case 2: // #Immediate
-                        effectiveAddress = -1;
-                        break;
-                    case 3: // Absolute
-                        effectiveAddress = Utils.address(this.state.args[0], this.state.args[1]);
-                        break;
-                    case 4: // (Zero Page),Y
-                        tmp = Utils.address(this.bus.read(this.state.args[0], true),
-                                      this.bus.read((this.state.args[0] + 1) & 0xff, true));
-                        effectiveAddress = (tmp + this.state.y) & 0xffff;
-                        break;
-                    case 5: // Zero Page,X
-                        effectiveAddress = zpxAddress(this.state.args[0]);
-                        break;
-                    case 6: // Absolute, Y
-                        effectiveAddress = yAddress(this.state.args[0], this.state.args[1]);
-                        break;
-                    case 7: // Absolute, X
-                        effectiveAddress = xAddress(this.state.args[0], this.state.args[1]);
-                        break;
-                }
-                break;
-        }
-
         // Execute
         switch (this.state.ir) {
 
@@ -562,6 +852,7 @@ public class Cpu implements InstructionTable {
                     this.state.x &= 0xff;
                     this.state.y &= 0xff;
                 }
+                updateWidths();
                 break;
 
             case 0xc2: // REP - Reset status bits
@@ -827,15 +1118,15 @@ public class Cpu implements InstructionTable {
 
             /** BIT - Bit Test ******************************************************/
             case 0x89: // 65C02 #Immediate
-                setZeroFlag((this.state.a & immediateArgs(false)) == 0);
+                this.state.zeroResult = this.state.a & immediateArgs(false);
                 break;
             case 0x34: // 65C02 Zero Page,X
             case 0x24: // Zero Page
             case 0x2c: // Absolute
             case 0x3c: // Absolute,X
                 tmp = readMemory(effectiveAddress, false);
-                setZeroFlag((this.state.a & tmp) == 0);
-                setNegativeFlag((tmp & negativeMWidth()) != 0);
+                this.state.zeroResult = this.state.a & tmp;
+                this.state.negativeResult = tmp << this.mShift;
                 setOverflowFlag((tmp & (this.state.mWidthFlag ? 0x40 : 0x4000)) != 0);
                 break;
 
@@ -1148,7 +1439,7 @@ public class Cpu implements InstructionTable {
             case 0x14: // 65C02 TRB - Test and Reset bit - Zero Page
             case 0x1c: // 65C02 TRB - Test and Reset bit - Absolute
                 tmp = readMemory(effectiveAddress, false);
-                setZeroFlag((this.state.a & tmp) == 0);
+                this.state.zeroResult = this.state.a & tmp;
                 tmp = (tmp &= ~(this.state.a)) & maskMWidth();
                 writeMemory(effectiveAddress, tmp, false);
                 break;
@@ -1156,7 +1447,7 @@ public class Cpu implements InstructionTable {
             case 0x04: // 65C02 TSB - Test and Set bit - Zero Page
             case 0x0c: // 65C02 TSB - Test and Set bit - Absolute
                 tmp = readMemory(effectiveAddress, false);
-                setZeroFlag((this.state.a & tmp) == 0);
+                this.state.zeroResult = this.state.a & tmp;
                 tmp = (tmp |= (this.state.a)) & maskMWidth();
                 writeMemory(effectiveAddress, tmp, false);
                 break;
@@ -1166,17 +1457,64 @@ public class Cpu implements InstructionTable {
                 setOpTrap();
                 break;
         }
+    }
 
-        // Peek ahead to the next insturction and arguments
-        peekAhead();
+    /**
+     * Calculates the effective address of the current instruction's operands.
+     *
+     * @param addressMode The effective address calculation, from {@link DecodeTable#addressModes}
+     * @return The effective address, or 0 if the instruction does not address memory
+     */
+    private int effectiveAddress(int addressMode) {
+        int tmp;
+        switch (addressMode) {
+            case DecodeTable.EA_ZPG:
+                return this.state.args[0];
+            case DecodeTable.EA_ABS:
+                return Utils.address(this.state.args[0], this.state.args[1]);
+            case DecodeTable.EA_ZPI:
+                return Utils.address(readByte(this.state.args[0]), readByte((this.state.args[0] + 1) & 0xff));
+            case DecodeTable.EA_ZPX:
+                return zpxAddress(this.state.args[0]);
+            case DecodeTable.EA_ZPY:
+                return zpyAddress(this.state.args[0]);
+            case DecodeTable.EA_ABX:
+                return xAddress(this.state.args[0], this.state.args[1]);
+            case DecodeTable.EA_ABY:
+                return yAddress(this.state.args[0], this.state.args[1]);
+            case DecodeTable.EA_XIN:
+                tmp = (this.state.args[0] + this.state.x) & 0xff;
+                return Utils.address(this.bus.read(tmp, true), this.bus.read(tmp + 1, true));
+            case DecodeTable.EA_INY:
+                tmp = Utils.address(this.bus.read(this.state.args[0], true),
+                              this.bus.read((this.state.args[0] + 1) & 0xff, true));
+                return (tmp + this.state.y) & 0xffff;
+            case DecodeTable.EA_ASP:
+                return this.state.args[0] + this.state.sp & 0xffff;
+            case DecodeTable.EA_ISY:
+                tmp = this.state.args[0] + this.state.sp & 0xffff;
+                return yAddress(this.bus.read(tmp, true), this.bus.read(tmp + 1, true));
+            case DecodeTable.EA_ABR:
+                return this.state.args[0] + this.state.r & 0xffff;
+            case DecodeTable.EA_IRY:
+                tmp = this.state.args[0] + this.state.r & 0xffff;
+                return yAddress(this.bus.read(tmp, true), this.bus.read(tmp + 1, true));
+            default:
+                return 0;
+        }
     }
 
-    private void peekAhead() {
-        this.state.nextIr = this.bus.read(this.state.pc, true);
-        int nextInstSize = this.state.getInstructionSize(this.state.nextIr);
+    /**
+     * Fills in {@link CpuState#nextIr} and {@link CpuState#nextArgs} with the instruction at the
+     * program counter. This is not done while running, and is only needed for debugging. The
+     * instruction is read with {@link Bus#peek}, so reading it has no side effects.
+     */
+    public void peekAhead() {
+        this.state.nextIr = this.bus.peek(this.state.pc);
+        int nextInstSize = this.instructionSizes[this.state.nextIr];
         for (int i = 1; i < nextInstSize; i++) {
             int nextRead = (this.state.pc + i) & 0xffff;
-            this.state.nextArgs[i-1] = this.bus.read(nextRead, true);
+            this.state.nextArgs[i-1] = this.bus.peek(nextRead);
         }
     }
 
@@ -1265,10 +1603,10 @@ public class Cpu implements InstructionTable {
         result = (l & 0x0f) | (h << 4);
         result &= maskMWidth();
         setCarryFlag(h > 15);
-        setZeroFlag(result == 0);
+        this.state.zeroResult = result;
         setOverflowFlag(false); // BCD never sets overflow flag
 
-        this.state.negativeFlag = (result & negativeMWidth()) != 0; // N Flag is valid on CMOS 6502/65816
+        this.state.negativeResult = result << this.mShift; // N Flag is valid on CMOS 6502/65816
         return result;
     }
 
@@ -1299,10 +1637,10 @@ public class Cpu implements InstructionTable {
         }
         result = (l & 0x0f) | (h << 4) & maskMWidth();
         setCarryFlag((h & maskMWidth()) < 15);
-        setZeroFlag(result == 0);
+        this.state.zeroResult = result;
         setOverflowFlag(false); // BCD never sets overflow flag
 
-        this.state.negativeFlag = (result & negativeMWidth()) != 0; // N Flag is valid on CMOS 6502/65816
+        this.state.negativeResult = result << this.mShift; // N Flag is valid on CMOS 6502/65816
         return (result & maskMWidth());
     }
 
@@ -1313,8 +1651,8 @@ public class Cpu implements InstructionTable {
     private void cmp(int reg, int operand, boolean x) {
         int tmp = (reg - operand) & (x ? maskXWidth() : maskMWidth());
         setCarryFlag(reg >= operand);
-        setZeroFlag(tmp == 0);
-        setNegativeFlag((tmp & (x ? negativeXWidth() : negativeMWidth())) != 0); // Negative bit set
+        this.state.zeroResult = tmp;
+        this.state.negativeResult = tmp << (x ? this.xShift : this.mShift); // Negative bit set
     }
 
     /**
@@ -1322,8 +1660,8 @@ public class Cpu implements InstructionTable {
      * register operand.
      */
     private void setArithmeticFlags(int reg, boolean x) {
-        this.state.zeroFlag = (reg == 0);
-        this.state.negativeFlag = (reg & (x ? negativeXWidth() : negativeMWidth())) != 0;
+        this.state.zeroResult = reg;
+        this.state.negativeResult = reg << (x ? this.xShift : this.mShift);
     }
 
     /**
@@ -1378,8 +1716,8 @@ public class Cpu implements InstructionTable {
         }
         this.state.a = v & maskMWidth();
         this.state.d = ((v >> (this.state.mWidthFlag ? 8 : 16)) & maskMWidth());
-        this.state.negativeFlag = v < 0;
-        this.state.zeroFlag = v == 0;
+        this.state.negativeResult = v;
+        this.state.zeroResult = v;
         this.state.overflowFlag = (this.state.d != 0) && (this.state.d != maskMWidth());
     }
 
@@ -1388,8 +1726,8 @@ public class Cpu implements InstructionTable {
             this.state.a = 0;
             this.state.d = 0;
             this.state.overflowFlag = true;
-            this.state.zeroFlag = false;
-            this.state.negativeFlag = false;
+            this.state.setZeroFlag(false);
+            this.state.setNegativeFlag(false);
             return;
         }
         int q;
@@ -1407,8 +1745,8 @@ public class Cpu implements InstructionTable {
         } else {
             this.state.overflowFlag = q > negativeMWidth() - 1;
         }
-        this.state.zeroFlag = this.state.a == 0;
-        this.state.negativeFlag = q < 0;
+        this.state.zeroResult = this.state.a;
+        this.state.negativeResult = q;
     }
 
     /**
@@ -1420,26 +1758,78 @@ public class Cpu implements InstructionTable {
         return this.state;
     }
 
+    /**
+     * Copies the state and settings of another CPU, for {@link Machine#fork}. Decoded blocks are
+     * thrown away.
+     *
+     * @param other The CPU to copy
+     */
+    void copyFrom(Cpu other) {
+        this.state.copyFrom(other.state);
+        this.stackBug = other.stackBug;
+        this.recompilerMode = other.recompilerMode;
+        updateWidths();
+        if (this.blockCache != null) {
+            this.blockCache.flush();
+        }
+    }
+
+    /**
+     * Writes the CPU state, see {@link Machine#saveState}.
+     *
+     * @param out The output
+     * @throws IOException If the output fails
+     */
+    public void saveState(DataOutput out) throws IOException {
+        this.state.writeTo(out);
+    }
+
+    /**
+     * Replaces the CPU state with one written by {@link #saveState}. Decoded blocks are thrown
+     * away.
+     *
+     * @param in The input
+     * @throws IOException If the input fails
+     */
+    public void loadState(DataInput in) throws IOException {
+        CpuState state = new CpuState();
+        state.readFrom(in);
+        loadState(state);
+    }
+
+    /**
+     * Replaces the CPU state with a copy of the given one. Decoded blocks are thrown away.
+     *
+     * @param state The state
+     */
+    public void loadState(CpuState state) {
+        this.state.copyFrom(state);
+        updateWidths();
+        if (this.blockCache != null) {
+            this.blockCache.flush();
+        }
+    }
+
     /**
      * @return the negative flag
      */
     public boolean getNegativeFlag() {
-        return this.state.negativeFlag;
+        return this.state.getNegativeFlag();
     }
 
     /**
      * @param negativeFlag the negative flag to set
      */
     public void setNegativeFlag(boolean negativeFlag) {
-        this.state.negativeFlag = negativeFlag;
+        this.state.setNegativeFlag(negativeFlag);
     }
 
     public void setNegativeFlag() {
-        this.state.negativeFlag = true;
+        this.state.setNegativeFlag(true);
     }
 
     public void clearNegativeFlag() {
-        this.state.negativeFlag = false;
+        this.state.setNegativeFlag(false);
     }
 
     /**
@@ -1481,28 +1871,28 @@ public class Cpu implements InstructionTable {
      * @return the zero flag
      */
     public boolean getZeroFlag() {
-        return this.state.zeroFlag;
+        return this.state.getZeroFlag();
     }
 
     /**
      * @param zeroFlag the zero flag to set
      */
     public void setZeroFlag(boolean zeroFlag) {
-        this.state.zeroFlag = zeroFlag;
+        this.state.setZeroFlag(zeroFlag);
     }
 
     /**
      * Sets the Zero Flag
      */
     public void setZeroFlag() {
-        this.state.zeroFlag = true;
+        this.state.setZeroFlag(true);
     }
 
     /**
      * Clears the Zero Flag
      */
     public void clearZeroFlag() {
-        this.state.zeroFlag = false;
+        this.state.setZeroFlag(false);
     }
 
     /**
@@ -1635,10 +2025,6 @@ public class Cpu implements InstructionTable {
 
     public void setProgramCounter(int addr) {
         this.state.pc = addr;
-
-        // As a side-effect of setting the program counter,
-        // we want to peek ahead at the next state.
-        peekAhead();
     }
 
     public int getStackPointer() {
@@ -1715,6 +2101,7 @@ public class Cpu implements InstructionTable {
         } else {
             this.state.mWidthFlag = true;
         }
+        updateWidths();
 
         if ((value & P_OVERFLOW) != 0) {
             setOverflowFlag();
@@ -1770,8 +2157,7 @@ public class Cpu implements InstructionTable {
     }
 
     private void stackRPush(int data, boolean x) {
-        boolean flag = x ? this.state.indexWidthFlag : this.state.mWidthFlag;
-        if (!this.state.emulationFlag && !flag) {
+        if (isWord(x)) {
             stackRPushWord(data);
         } else {
             stackRPushByte(data);
@@ -1789,8 +2175,7 @@ public class Cpu implements InstructionTable {
     }
 
     private int stackRPop(boolean x) {
-        boolean flag = x ? this.state.indexWidthFlag : this.state.mWidthFlag;
-        if (!this.state.emulationFlag && !flag) {
+        if (isWord(x)) {
             return stackRPopWord();
         } else {
             return stackRPopByte();
@@ -1808,7 +2193,7 @@ public class Cpu implements InstructionTable {
     }
 
     private void stackPush(int data, boolean x) {
-        if (!this.state.emulationFlag && !(x ? this.state.indexWidthFlag : this.state.mWidthFlag)) {
+        if (isWord(x)) {
             stackPushWord(data);
         } else {
             stackPushByte(data);
@@ -1841,8 +2226,7 @@ public class Cpu implements InstructionTable {
     }
 
     private int stackPop(boolean x) {
-        boolean word = !this.state.emulationFlag && !(x ? this.state.indexWidthFlag : this.state.mWidthFlag);
-        if (word) {
+        if (isWord(x)) {
             return stackPopWord();
         }
         return stackPopByte();
@@ -1923,59 +2307,13 @@ public class Cpu implements InstructionTable {
 
     /**
      * Return a formatted string representing the last instruction and
-     * operands that were executed.
+     * operands that were executed. {@link Disassembler} writes the same text without allocating.
      *
      * @return A string representing the mnemonic and operands of the instruction
      */
     public static String disassembleOp(int opCode, int[] args, int insnLen) {
-        String mnemonic = opcodeNames[opCode];
-
-        if (mnemonic == null) {
-            return "???";
-        }
-
-        StringBuilder sb = new StringBuilder(mnemonic);
-
-        switch (instructionModes[opCode]) {
-            case ABS:
-                sb.append(" $").append(Utils.wordToHex(Utils.address(args[0], args[1])));
-                break;
-            case AIX:
-                sb.append(" ($").append(Utils.wordToHex(Utils.address(args[0], args[1]))).append(",X)");
-            case ABX:
-                sb.append(" $").append(Utils.wordToHex(Utils.address(args[0], args[1]))).append(",X");
-                break;
-            case ABY:
-                sb.append(" $").append(Utils.wordToHex(Utils.address(args[0], args[1]))).append(",Y");
-                break;
-            case IMM:
-                sb.append(" #$").append(insnLen > 2 ? Utils.wordToHex(Utils.address(args[0], args[1])) : Utils.byteToHex(args[0]));
-                break;
-            case IND:
-                sb.append(" ($").append(Utils.wordToHex(Utils.address(args[0], args[1]))).append(")");
-                break;
-            case XIN:
-                sb.append(" ($").append(Utils.byteToHex(args[0])).append(",X)");
-                break;
-            case INY:
-                sb.append(" ($").append(Utils.byteToHex(args[0])).append("),Y");
-                break;
-            case REL:
-            case ZPR:
-            case ZPG:
-                sb.append(" $").append(Utils.byteToHex(args[0]));
-                break;
-            case ZPX:
-                sb.append(" $").append(Utils.byteToHex(args[0])).append(",X");
-                break;
-            case ZPY:
-                sb.append(" $").append(Utils.byteToHex(args[0])).append(",Y");
-                break;
-            default:
-                break;
-        }
-
-        return sb.toString();
+        char[] chars = new char[16];
+        return new String(chars, 0, Disassembler.formatOp(opCode, args[0], args[1], insnLen, chars, 0));
     }
 
 }
@@ -21,6 +21,10 @@
 
 package com.simon816.j65el02;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * A compact, struct-like representation of CPU state.
  */
@@ -68,7 +72,7 @@ public class CpuState {
     public int por = 0x400; // 65el02 POR address
 
     /**
-     * Peek-Ahead to next IR
+     * Peek-Ahead to next IR, only filled in by {@link Cpu#peekAhead}
      */
     public int nextIr;
     public int[] args = new int[2];
@@ -83,8 +87,13 @@ public class CpuState {
 
     /* Status Flag Register bits */
     public boolean carryFlag;
-    public boolean negativeFlag;
-    public boolean zeroFlag;
+    /*
+     * The N and Z flags are kept as the values they were last computed from, and only worked out
+     * when read. N is set if negativeResult is negative, so results are stored shifted to put
+     * their sign bit in bit 31. Z is set if zeroResult is 0.
+     */
+    public int negativeResult;
+    public int zeroResult = 1;
     public boolean irqDisableFlag;
     public boolean decimalModeFlag;
     public boolean breakFlag;
@@ -106,7 +115,17 @@ public class CpuState {
      * @param s The CpuState to copy.
      */
     public CpuState(CpuState s) {
+        copyFrom(s);
+    }
+
+    /**
+     * Overwrites this state with a copy of another.
+     *
+     * @param s The CpuState to copy.
+     */
+    public void copyFrom(CpuState s) {
         this.a = s.a;
+        this.aTop = s.aTop;
         this.x = s.x;
         this.y = s.y;
         this.sp = s.sp;
@@ -126,19 +145,113 @@ public class CpuState {
         this.instSize = s.instSize;
         this.opTrap = s.opTrap;
         this.irqAsserted = s.irqAsserted;
+        this.nmiAsserted = s.nmiAsserted;
         this.intWait = s.intWait;
         this.signalStop = s.signalStop;
         this.carryFlag = s.carryFlag;
-        this.negativeFlag = s.negativeFlag;
-        this.zeroFlag = s.zeroFlag;
+        this.negativeResult = s.negativeResult;
+        this.zeroResult = s.zeroResult;
         this.irqDisableFlag = s.irqDisableFlag;
         this.decimalModeFlag = s.decimalModeFlag;
         this.breakFlag = s.breakFlag;
         this.overflowFlag = s.overflowFlag;
         this.emulationFlag = s.emulationFlag;
+        this.mWidthFlag = s.mWidthFlag;
+        this.indexWidthFlag = s.indexWidthFlag;
         this.stepCounter = s.stepCounter;
     }
 
+    /**
+     * Writes every field of this state, for {@link Machine#saveState}.
+     *
+     * @param out The output
+     * @throws IOException If the output fails
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(this.a);
+        out.writeInt(this.aTop);
+        out.writeInt(this.x);
+        out.writeInt(this.y);
+        out.writeInt(this.sp);
+        out.writeInt(this.pc);
+        out.writeInt(this.ir);
+        out.writeInt(this.i);
+        out.writeInt(this.r);
+        out.writeInt(this.d);
+        out.writeInt(this.brk);
+        out.writeInt(this.por);
+        out.writeInt(this.nextIr);
+        out.writeInt(this.lastPc);
+        out.writeByte(this.args[0]);
+        out.writeByte(this.args[1]);
+        out.writeByte(this.nextArgs[0]);
+        out.writeByte(this.nextArgs[1]);
+        out.writeByte(this.instSize);
+        out.writeInt(this.negativeResult);
+        out.writeInt(this.zeroResult);
+        out.writeLong(this.stepCounter);
+        int flags = 0;
+        flags |= this.opTrap ? 1 : 0;
+        flags |= this.irqAsserted ? 1 << 1 : 0;
+        flags |= this.nmiAsserted ? 1 << 2 : 0;
+        flags |= this.intWait ? 1 << 3 : 0;
+        flags |= this.signalStop ? 1 << 4 : 0;
+        flags |= this.carryFlag ? 1 << 5 : 0;
+        flags |= this.irqDisableFlag ? 1 << 6 : 0;
+        flags |= this.decimalModeFlag ? 1 << 7 : 0;
+        flags |= this.breakFlag ? 1 << 8 : 0;
+        flags |= this.overflowFlag ? 1 << 9 : 0;
+        flags |= this.emulationFlag ? 1 << 10 : 0;
+        flags |= this.mWidthFlag ? 1 << 11 : 0;
+        flags |= this.indexWidthFlag ? 1 << 12 : 0;
+        out.writeShort(flags);
+    }
+
+    /**
+     * Overwrites this state with one written by {@link #writeTo}.
+     *
+     * @param in The input
+     * @throws IOException If the input fails
+     */
+    public void readFrom(DataInput in) throws IOException {
+        this.a = in.readInt();
+        this.aTop = in.readInt();
+        this.x = in.readInt();
+        this.y = in.readInt();
+        this.sp = in.readInt();
+        this.pc = in.readInt();
+        this.ir = in.readInt();
+        this.i = in.readInt();
+        this.r = in.readInt();
+        this.d = in.readInt();
+        this.brk = in.readInt();
+        this.por = in.readInt();
+        this.nextIr = in.readInt();
+        this.lastPc = in.readInt();
+        this.args[0] = in.readUnsignedByte();
+        this.args[1] = in.readUnsignedByte();
+        this.nextArgs[0] = in.readUnsignedByte();
+        this.nextArgs[1] = in.readUnsignedByte();
+        this.instSize = in.readUnsignedByte();
+        this.negativeResult = in.readInt();
+        this.zeroResult = in.readInt();
+        this.stepCounter = in.readLong();
+        int flags = in.readUnsignedShort();
+        this.opTrap = (flags & 1) != 0;
+        this.irqAsserted = (flags & 1 << 1) != 0;
+        this.nmiAsserted = (flags & 1 << 2) != 0;
+        this.intWait = (flags & 1 << 3) != 0;
+        this.signalStop = (flags & 1 << 4) != 0;
+        this.carryFlag = (flags & 1 << 5) != 0;
+        this.irqDisableFlag = (flags & 1 << 6) != 0;
+        this.decimalModeFlag = (flags & 1 << 7) != 0;
+        this.breakFlag = (flags & 1 << 8) != 0;
+        this.overflowFlag = (flags & 1 << 9) != 0;
+        this.emulationFlag = (flags & 1 << 10) != 0;
+        this.mWidthFlag = (flags & 1 << 11) != 0;
+        this.indexWidthFlag = (flags & 1 << 12) != 0;
+    }
+
     /**
      * Returns a string formatted for the trace log.
      *
@@ -160,6 +273,22 @@ public class CpuState {
 //                getProcessorStatusString() + "\n";
     }
 
+    public boolean getNegativeFlag() {
+        return this.negativeResult < 0;
+    }
+
+    public void setNegativeFlag(boolean negativeFlag) {
+        this.negativeResult = negativeFlag ? -1 : 0;
+    }
+
+    public boolean getZeroFlag() {
+        return this.zeroResult == 0;
+    }
+
+    public void setZeroFlag(boolean zeroFlag) {
+        this.zeroResult = zeroFlag ? 0 : 1;
+    }
+
     /**
      * @return The value of the Process Status Register, as a byte.
      */
@@ -168,7 +297,7 @@ public class CpuState {
         if (this.carryFlag) {
             status |= Cpu.P_CARRY;
         }
-        if (this.zeroFlag) {
+        if (getZeroFlag()) {
             status |= Cpu.P_ZERO;
         }
         if (this.irqDisableFlag) {
@@ -196,43 +325,14 @@ public class CpuState {
         if (this.overflowFlag) {
             status |= Cpu.P_OVERFLOW;
         }
-        if (this.negativeFlag) {
+        if (getNegativeFlag()) {
             status |= Cpu.P_NEGATIVE;
         }
         return status;
     }
 
     public int getInstructionSize(int insn) {
-        int m = this.mWidthFlag ? 1 : 0;
-        int x = this.indexWidthFlag ? 1 : 0;
-        switch (insn) {
-            case 0x69: // ADC IMM
-                return 3 - m;
-            case 0xe9: // SBC IMM
-                return 3 - m;
-            case 0xc9: // CMP IMM
-                return 3 - m;
-            case 0xe0: // CPX IMM
-                return 3 - x;
-            case 0xc0: // CPY IMM
-                return 3 - x;
-            case 0x29: // AND IMM
-                return 3 - m;
-            case 0x49: // EOR IMM
-                return 3 - m;
-            case 0x09: // ORA IMM
-                return 3 - m;
-            case 0x89: // BIT IMM
-                return 3 - m;
-            case 0xa9: // LDA IMM
-                return 3 - m;
-            case 0xa2: // LDX IMM
-                return 3 - x;
-            case 0xa0: // LDY IMM
-                return 3 - x;
-            default:
-                return Cpu.instructionSizes[insn];
-        }
+        return DecodeTable.instructionSizes[DecodeTable.widthIndex(this.mWidthFlag, this.indexWidthFlag)][insn];
     }
 
     public String getInstructionByteStatus() {
@@ -259,13 +359,13 @@ public class CpuState {
      * @return A string representing the current status register state.
      */
     public String getProcessorStatusString() {
-        return "[" + (this.negativeFlag ? 'N' : '.') +
+        return "[" + (getNegativeFlag() ? 'N' : '.') +
                 (this.overflowFlag ? 'V' : '.') +
                 (this.emulationFlag ? "-" : (this.mWidthFlag ? 'M' : '.')) +
                 (this.emulationFlag ? (this.breakFlag ? 'B' : '.') : (this.indexWidthFlag ? 'X' : '.')) +
                 (this.decimalModeFlag ? 'D' : '.') +
                 (this.irqDisableFlag ? 'I' : '.') +
-                (this.zeroFlag ? 'Z' : '.') +
+                (getZeroFlag() ? 'Z' : '.') +
                 (this.carryFlag ? 'C' : '.') +
                 "]";
     }
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Breakpoints and watchpoints for a machine.
+ *
+ * <p>
+ * When one is hit the processor is stopped, as if by STP, and the run returns. The state can then
+ * be inspected, and {@link #resume} lets the machine carry on from where it stopped. A breakpoint
+ * stops the processor before the instruction at its address runs, and a watchpoint stops it after
+ * the instruction that made the access.
+ * </p>
+ *
+ * <p>
+ * Watchpoints only cover data accesses. Fetching an instruction and its operands never triggers a
+ * read watchpoint, even if the code is in a watched range, whether the instruction is fetched
+ * through the bus or taken from the block cache.
+ * </p>
+ *
+ * <p>
+ * While no breakpoints or watchpoints are set the machine runs at full speed. Otherwise recompiled
+ * blocks are not run, and only accesses to watched pages take the slow path. Breakpoints and
+ * watchpoints should be changed while the machine is not running.
+ * </p>
+ */
+public final class Debugger implements Bus.WatchListener {
+
+    public enum HitType {
+        BREAKPOINT,
+        READ,
+        WRITE
+    }
+
+    private static final int PAGE_SHIFT = 8;
+
+    private final Cpu cpu;
+    private final Bus bus;
+
+    private final long[] breakpoints = new long[0x10000 / 64];
+    private final Map<Integer, Predicate<CpuState>> conditions = new HashMap<>();
+    private int breakpointCount;
+
+    private final List<Watchpoint> watchpoints = new ArrayList<>();
+
+    private Consumer<Hit> hitListener;
+
+    private Hit hit;
+    /* A watchpoint hit during the current instruction */
+    private Hit pendingHit;
+    /* Whether the processor was stopped by a hit, rather than by STP */
+    private boolean paused;
+    /* Breakpoint that the resumed instruction is allowed past */
+    private int resumePc = -1;
+
+    /**
+     * Attaches a debugger to the machine, in place of any other.
+     *
+     * @param machine The machine
+     */
+    public Debugger(Machine machine) {
+        this.cpu = machine.getCpu();
+        this.bus = machine.getBus();
+        this.cpu.setDebugger(this);
+        this.bus.setWatchListener(this);
+    }
+
+    /**
+     * Removes every breakpoint and watchpoint and detaches the debugger. The machine must not be
+     * running.
+     */
+    public void detach() {
+        resume();
+        this.watchpoints.clear();
+        updateWatchPages();
+        this.cpu.setDebugger(null);
+        this.bus.setWatchListener(null);
+    }
+
+    /**
+     * Sets the function called on the thread running the machine whenever the processor is
+     * stopped by a hit.
+     *
+     * @param listener The listener
+     */
+    public void setHitListener(Consumer<Hit> listener) {
+        this.hitListener = listener;
+    }
+
+    boolean isActive() {
+        return this.breakpointCount > 0 || !this.watchpoints.isEmpty();
+    }
+
+    public void addBreakpoint(int pc) {
+        addBreakpoint(pc, null);
+    }
+
+    /**
+     * Adds a breakpoint that only stops the processor when the condition holds, replacing any
+     * breakpoint already at the address.
+     *
+     * @param pc The address of the instruction
+     * @param condition Tested on the state before the instruction, or null to always stop
+     */
+    public void addBreakpoint(int pc, Predicate<CpuState> condition) {
+        pc &= 0xffff;
+        if (!hasBreakpoint(pc)) {
+            this.breakpoints[pc >>> 6] |= 1L << pc;
+            this.breakpointCount++;
+        }
+        if (condition == null) {
+            this.conditions.remove(pc);
+        } else {
+            this.conditions.put(pc, condition);
+        }
+        this.cpu.updateInstrumented();
+    }
+
+    public void removeBreakpoint(int pc) {
+        pc &= 0xffff;
+        if (hasBreakpoint(pc)) {
+            this.breakpoints[pc >>> 6] &= ~(1L << pc);
+            this.breakpointCount--;
+            this.conditions.remove(pc);
+            this.cpu.updateInstrumented();
+        }
+    }
+
+    public boolean hasBreakpoint(int pc) {
+        return (this.breakpoints[(pc & 0xffff) >>> 6] & 1L << pc) != 0;
+    }
+
+    /**
+     * Adds a watchpoint on a range of addresses.
+     *
+     * @param start The first address
+     * @param end The last address
+     * @param read Whether to stop on reads by the CPU
+     * @param write Whether to stop on writes
+     * @return The watchpoint, for {@link #removeWatchpoint}
+     */
+    public Watchpoint addWatchpoint(int start, int end, boolean read, boolean write) {
+        if (start < 0 || end > 0xffff || start > end) {
+            throw new IllegalArgumentException("Invalid range " + start + " to " + end);
+        }
+        Watchpoint watchpoint = new Watchpoint(start, end, read, write);
+        this.watchpoints.add(watchpoint);
+        updateWatchPages();
+        return watchpoint;
+    }
+
+    public void removeWatchpoint(Watchpoint watchpoint) {
+        if (this.watchpoints.remove(watchpoint)) {
+            updateWatchPages();
+        }
+    }
+
+    private void updateWatchPages() {
+        boolean[] read = new boolean[0x100];
+        boolean[] write = new boolean[0x100];
+        for (Watchpoint watchpoint : this.watchpoints) {
+            for (int page = watchpoint.start >>> PAGE_SHIFT; page <= watchpoint.end >>> PAGE_SHIFT; page++) {
+                read[page] |= watchpoint.read;
+                write[page] |= watchpoint.write;
+            }
+        }
+        for (int page = 0; page < read.length; page++) {
+            this.bus.setWatchPage(page, read[page], write[page]);
+        }
+        this.cpu.updateInstrumented();
+    }
+
+    /**
+     * Gets the hit that stopped the processor, or null if it was not stopped by the debugger.
+     */
+    public Hit getHit() {
+        return this.hit;
+    }
+
+    public boolean isPaused() {
+        return this.paused;
+    }
+
+    /**
+     * Lets the processor carry on after a hit, without stopping again at the same breakpoint. The
+     * machine can then be run again.
+     */
+    public void resume() {
+        if (this.paused) {
+            this.paused = false;
+            this.cpu.getCpuState().signalStop = false;
+            if (this.hit.type == HitType.BREAKPOINT) {
+                this.resumePc = this.hit.pc;
+            }
+        }
+        this.hit = null;
+        this.pendingHit = null;
+    }
+
+    /**
+     * Checks the breakpoints before an instruction runs, stopping the processor if one is hit.
+     *
+     * @param state The state, with the program counter at the instruction
+     * @return Whether the processor was stopped
+     */
+    boolean breakBefore(CpuState state) {
+        int pc = state.pc;
+        int resumePc = this.resumePc;
+        this.resumePc = -1;
+        if (!hasBreakpoint(pc) || pc == resumePc) {
+            return false;
+        }
+        Predicate<CpuState> condition = this.conditions.get(pc);
+        if (condition != null && !condition.test(state)) {
+            return false;
+        }
+        stop(state, new Hit(HitType.BREAKPOINT, pc, pc, 0));
+        return true;
+    }
+
+    /**
+     * Stops the processor if the instruction that just ran hit a watchpoint.
+     *
+     * @param state The state
+     */
+    void afterInstruction(CpuState state) {
+        Hit hit = this.pendingHit;
+        if (hit != null) {
+            this.pendingHit = null;
+            stop(state, hit);
+        }
+    }
+
+    private void stop(CpuState state, Hit hit) {
+        this.hit = hit;
+        if (!state.signalStop) {
+            state.signalStop = true;
+            this.paused = true;
+        }
+        if (this.hitListener != null) {
+            this.hitListener.accept(hit);
+        }
+    }
+
+    @Override
+    public void onRead(int address, int data) {
+        checkWatchpoints(HitType.READ, address, data);
+    }
+
+    @Override
+    public void onWrite(int address, int data) {
+        checkWatchpoints(HitType.WRITE, address, data);
+    }
+
+    private void checkWatchpoints(HitType type, int address, int data) {
+        if (this.pendingHit != null) {
+            return;
+        }
+        for (Watchpoint watchpoint : this.watchpoints) {
+            if (address >= watchpoint.start && address <= watchpoint.end
+                    && (type == HitType.READ ? watchpoint.read : watchpoint.write)) {
+                this.pendingHit = new Hit(type, this.cpu.getCpuState().lastPc, address, data);
+                return;
+            }
+        }
+    }
+
+    /**
+     * A range of addresses being watched.
+     */
+    public static final class Watchpoint {
+
+        private final int start;
+        private final int end;
+        private final boolean read;
+        private final boolean write;
+
+        Watchpoint(int start, int end, boolean read, boolean write) {
+            this.start = start;
+            this.end = end;
+            this.read = read;
+            this.write = write;
+        }
+
+        public int getStart() {
+            return this.start;
+        }
+
+        public int getEnd() {
+            return this.end;
+        }
+
+        public boolean isRead() {
+            return this.read;
+        }
+
+        public boolean isWrite() {
+            return this.write;
+        }
+    }
+
+    /**
+     * What stopped the processor.
+     */
+    public static final class Hit {
+
+        private final HitType type;
+        private final int pc;
+        private final int address;
+        private final int data;
+
+        Hit(HitType type, int pc, int address, int data) {
+            this.type = type;
+            this.pc = pc;
+            this.address = address;
+            this.data = data;
+        }
+
+        public HitType getType() {
+            return this.type;
+        }
+
+        /**
+         * Gets the address of the instruction that was stopped before, or that made the access.
+         */
+        public int getPc() {
+            return this.pc;
+        }
+
+        /**
+         * Gets the address accessed, or the breakpoint address.
+         */
+        public int getAddress() {
+            return this.address;
+        }
+
+        /**
+         * Gets the byte read or written, or 0 for a breakpoint.
+         */
+        public int getData() {
+            return this.data;
+        }
+
+        @Override
+        public String toString() {
+            return this.type + " at " + Utils.wordToHex(this.pc) + " address " + Utils.wordToHex(this.address);
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.simon816.j65el02;
+
+/**
+ * Per-opcode decoding information, precomputed once from the {@link InstructionTable} so the CPU
+ * does not need to work out the addressing mode or operand length of each instruction as it is
+ * executed.
+ */
+final class DecodeTable {
+
+    /* Effective address calculations */
+    static final int EA_NONE = 0; // Implied, accumulator, immediate, relative or uses the operands directly
+    static final int EA_ZPG = 1;  // Zero Page
+    static final int EA_ABS = 2;  // Absolute
+    static final int EA_ZPI = 3;  // 65C02 (Zero Page)
+    static final int EA_ZPX = 4;  // Zero Page,X
+    static final int EA_ZPY = 5;  // Zero Page,Y
+    static final int EA_ABX = 6;  // Absolute,X
+    static final int EA_ABY = 7;  // Absolute,Y
+    static final int EA_XIN = 8;  // (Zero Page,X)
+    static final int EA_INY = 9;  // (Zero Page),Y
+    static final int EA_ASP = 10; // stk,S
+    static final int EA_ISY = 11; // (stk,S),Y
+    static final int EA_ABR = 12; // r,R
+    static final int EA_IRY = 13; // (r,R),Y
+
+    /**
+     * The effective address calculation for each opcode.
+     */
+    static final int[] addressModes = new int[0x100];
+
+    /**
+     * The size of each instruction, indexed by {@link #widthIndex} and then opcode. Immediate
+     * operands are one or two bytes depending on the M and X flags.
+     */
+    static final int[][] instructionSizes = new int[4][0x100];
+
+    static {
+        for (int op = 0; op < 0x100; op++) {
+            addressModes[op] = addressMode(InstructionTable.instructionModes[op]);
+            for (int width = 0; width < instructionSizes.length; width++) {
+                instructionSizes[width][op] = InstructionTable.instructionSizes[op];
+            }
+            if (InstructionTable.instructionModes[op] == InstructionTable.Mode.IMM) {
+                switch (InstructionTable.opcodeNames[op]) {
+                    case "ADC":
+                    case "SBC":
+                    case "CMP":
+                    case "AND":
+                    case "EOR":
+                    case "ORA":
+                    case "BIT":
+                    case "LDA":
+                        instructionSizes[widthIndex(false, true)][op] = 3;
+                        instructionSizes[widthIndex(false, false)][op] = 3;
+                        break;
+                    case "CPX":
+                    case "CPY":
+                    case "LDX":
+                    case "LDY":
+                        instructionSizes[widthIndex(true, false)][op] = 3;
+                        instructionSizes[widthIndex(false, false)][op] = 3;
+                        break;
+                }
+            }
+        }
+    }
+
+    private DecodeTable() {
+    }
+
+    /**
+     * Gets the index into {@link #instructionSizes} for the given register widths.
+     *
+     * @param mWidthFlag Whether the accumulator and memory are 8 bits wide
+     * @param indexWidthFlag Whether the index registers are 8 bits wide
+     * @return The index of the size table
+     */
+    static int widthIndex(boolean mWidthFlag, boolean indexWidthFlag) {
+        return (mWidthFlag ? 1 : 0) | (indexWidthFlag ? 2 : 0);
+    }
+
+    private static int addressMode(InstructionTable.Mode mode) {
+        switch (mode) {
+            case ZPG:
+                return EA_ZPG;
+            case ABS:
+                return EA_ABS;
+            case ZPI:
+                return EA_ZPI;
+            case ZPX:
+                return EA_ZPX;
+            case ZPY:
+                return EA_ZPY;
+            case ABX:
+                return EA_ABX;
+            case ABY:
+                return EA_ABY;
+            case XIN:
+                return EA_XIN;
+            case INY:
+                return EA_INY;
+            case ASP:
+                return EA_ASP;
+            case ISY:
+                return EA_ISY;
+            case ABR:
+                return EA_ABR;
+            case IRY:
+                return EA_IRY;
+            default:
+                return EA_NONE;
+        }
+    }
+
+}
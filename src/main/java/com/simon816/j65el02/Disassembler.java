@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Disassembles code from the bus, a buffer or a disk image into an {@link Appendable}, one line
+ * per instruction in the same layout as the trace log:
+ *
+ * <pre>
+ * 0400  A9 34 12  LDA #$1234
+ * </pre>
+ *
+ * Lines are built in a reusable buffer, so nothing is allocated per instruction. Immediate
+ * operands are sized from the current register widths, which follow any REP and SEP instructions
+ * that are disassembled. XCE, PLP and RTI are not followed, as their effect depends on the state
+ * at run time.
+ */
+public final class Disassembler {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /* Long enough for "FFFF  FF FF FF  MNE ($FF,S),Y\n" */
+    private static final int LINE_LENGTH = 32;
+
+    private final Appendable out;
+    private final Writer writer;
+    private final char[] line = new char[LINE_LENGTH];
+
+    private boolean emulationFlag = true;
+    private boolean mWidthFlag = true;
+    private boolean indexWidthFlag = true;
+
+    /**
+     * @param out Where lines are written. Writers are written to a line at a time, other
+     *        appendables a character at a time.
+     */
+    public Disassembler(Appendable out) {
+        this.out = out;
+        this.writer = out instanceof Writer ? (Writer) out : null;
+    }
+
+    /**
+     * Sets the register widths used to size immediate operands.
+     *
+     * @param emulationFlag Whether the CPU is in emulation mode, where REP and SEP cannot widen
+     *        the registers
+     * @param mWidthFlag Whether the accumulator and memory are 8 bits wide
+     * @param indexWidthFlag Whether the index registers are 8 bits wide
+     */
+    public void setWidths(boolean emulationFlag, boolean mWidthFlag, boolean indexWidthFlag) {
+        this.emulationFlag = emulationFlag;
+        this.mWidthFlag = mWidthFlag || emulationFlag;
+        this.indexWidthFlag = indexWidthFlag || emulationFlag;
+    }
+
+    /**
+     * Takes the register widths from a CPU state, such as the one in a crash dump.
+     *
+     * @param state The state
+     */
+    public void setWidths(CpuState state) {
+        setWidths(state.emulationFlag, state.mWidthFlag, state.indexWidthFlag);
+    }
+
+    public boolean getMWidthFlag() {
+        return this.mWidthFlag;
+    }
+
+    public boolean getIndexWidthFlag() {
+        return this.indexWidthFlag;
+    }
+
+    /**
+     * Disassembles memory through {@link Bus#peek}, so that no device changes state.
+     *
+     * @param bus The bus
+     * @param start The address of the first instruction
+     * @param end The last address to disassemble, inclusive. The last instruction may run past it.
+     * @return The address after the last instruction
+     * @throws IOException If the output fails
+     */
+    public int disassemble(Bus bus, int start, int end) throws IOException {
+        int address = start;
+        while (address <= end) {
+            int op = bus.peek(address & 0xffff);
+            int size = instructionSize(op);
+            int arg0 = size > 1 ? bus.peek((address + 1) & 0xffff) : 0;
+            int arg1 = size > 2 ? bus.peek((address + 2) & 0xffff) : 0;
+            writeLine(address & 0xffff, op, arg0, arg1, size);
+            address += size;
+        }
+        return address;
+    }
+
+    /**
+     * Disassembles the remaining bytes of a buffer, leaving its position after the last complete
+     * instruction. An instruction cut off by the end of the buffer is not written.
+     *
+     * @param code The code
+     * @param origin The address the first byte is loaded at
+     * @return The address after the last instruction
+     * @throws IOException If the output fails
+     */
+    public int disassemble(ByteBuffer code, int origin) throws IOException {
+        int address = origin;
+        while (code.hasRemaining()) {
+            int position = code.position();
+            int op = code.get(position) & 0xff;
+            int size = instructionSize(op);
+            if (code.remaining() < size) {
+                break;
+            }
+            int arg0 = size > 1 ? code.get(position + 1) & 0xff : 0;
+            int arg1 = size > 2 ? code.get(position + 2) & 0xff : 0;
+            writeLine(address & 0xffff, op, arg0, arg1, size);
+            code.position(position + size);
+            address += size;
+        }
+        return address;
+    }
+
+    /**
+     * Disassembles a whole disk image or ROM file, which is mapped rather than read into memory.
+     *
+     * @param image The file
+     * @param origin The address the start of the file is loaded at, 0x500 for a RedPower boot disk
+     * @return The address after the last instruction
+     * @throws IOException If the file cannot be read or the output fails
+     */
+    public int disassemble(Path image, int origin) throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            return disassemble(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), origin);
+        }
+    }
+
+    private int instructionSize(int op) {
+        int size = DecodeTable.instructionSizes[DecodeTable.widthIndex(this.mWidthFlag,
+                this.indexWidthFlag)][op];
+        return size < 1 ? 1 : size;
+    }
+
+    private void writeLine(int address, int op, int arg0, int arg1, int size) throws IOException {
+        char[] line = this.line;
+        int pos = writeWord(line, 0, address);
+        line[pos++] = ' ';
+        line[pos++] = ' ';
+        pos = writeByte(line, pos, op);
+        for (int i = 1; i < 3; i++) {
+            line[pos++] = ' ';
+            if (i < size) {
+                pos = writeByte(line, pos, i == 1 ? arg0 : arg1);
+            } else {
+                line[pos++] = ' ';
+                line[pos++] = ' ';
+            }
+        }
+        line[pos++] = ' ';
+        line[pos++] = ' ';
+        pos = formatOp(op, arg0, arg1, size, line, pos);
+        line[pos++] = '\n';
+
+        if (this.writer != null) {
+            this.writer.write(line, 0, pos);
+        } else {
+            for (int i = 0; i < pos; i++) {
+                this.out.append(line[i]);
+            }
+        }
+
+        if (!this.emulationFlag) {
+            if (op == 0xc2) { // REP
+                this.mWidthFlag &= (arg0 & Cpu.P_MFLAG) == 0;
+                this.indexWidthFlag &= (arg0 & Cpu.P_BREAK_OR_X) == 0;
+            } else if (op == 0xe2) { // SEP
+                this.mWidthFlag |= (arg0 & Cpu.P_MFLAG) != 0;
+                this.indexWidthFlag |= (arg0 & Cpu.P_BREAK_OR_X) != 0;
+            }
+        }
+    }
+
+    /**
+     * Writes the mnemonic and operands of an instruction, such as {@code LDA #$12}, into a
+     * character buffer.
+     *
+     * @param opCode The opcode
+     * @param arg0 The first operand byte
+     * @param arg1 The second operand byte
+     * @param insnLen The size of the instruction, which decides the size of immediate operands
+     * @param dest The buffer, which needs room for 14 characters
+     * @param offset Where to start writing
+     * @return The offset after the last character written
+     */
+    public static int formatOp(int opCode, int arg0, int arg1, int insnLen, char[] dest,
+            int offset) {
+        String mnemonic = InstructionTable.opcodeNames[opCode];
+        if (mnemonic == null) {
+            dest[offset++] = '?';
+            dest[offset++] = '?';
+            dest[offset++] = '?';
+            return offset;
+        }
+        mnemonic.getChars(0, mnemonic.length(), dest, offset);
+        int pos = offset + mnemonic.length();
+
+        switch (InstructionTable.instructionModes[opCode]) {
+            case ABS:
+                pos = writeOperand(dest, pos, " $", arg0, arg1, true, "");
+                break;
+            case AIX:
+                pos = writeOperand(dest, pos, " ($", arg0, arg1, true, ",X)");
+                break;
+            case ABX:
+                pos = writeOperand(dest, pos, " $", arg0, arg1, true, ",X");
+                break;
+            case ABY:
+                pos = writeOperand(dest, pos, " $", arg0, arg1, true, ",Y");
+                break;
+            case IMM:
+                pos = writeOperand(dest, pos, " #$", arg0, arg1, insnLen > 2, "");
+                break;
+            case IND:
+                pos = writeOperand(dest, pos, " ($", arg0, arg1, true, ")");
+                break;
+            case XIN:
+                pos = writeOperand(dest, pos, " ($", arg0, arg1, false, ",X)");
+                break;
+            case INY:
+                pos = writeOperand(dest, pos, " ($", arg0, arg1, false, "),Y");
+                break;
+            case ZPI:
+                pos = writeOperand(dest, pos, " ($", arg0, arg1, false, ")");
+                break;
+            case ASP:
+                pos = writeOperand(dest, pos, " $", arg0, arg1, false, ",S");
+                break;
+            case ABR:
+                pos = writeOperand(dest, pos, " $", arg0, arg1, false, ",R");
+                break;
+            case ISY:
+                pos = writeOperand(dest, pos, " ($", arg0, arg1, false, ",S),Y");
+                break;
+            case IRY:
+                pos = writeOperand(dest, pos, " ($", arg0, arg1, false, ",R),Y");
+                break;
+            case REL:
+            case ZPR:
+            case ZPG:
+                pos = writeOperand(dest, pos, " $", arg0, arg1, false, "");
+                break;
+            case ZPX:
+                pos = writeOperand(dest, pos, " $", arg0, arg1, false, ",X");
+                break;
+            case ZPY:
+                pos = writeOperand(dest, pos, " $", arg0, arg1, false, ",Y");
+                break;
+            default:
+                break;
+        }
+        return pos;
+    }
+
+    private static int writeOperand(char[] dest, int pos, String prefix, int arg0, int arg1,
+            boolean word, String suffix) {
+        prefix.getChars(0, prefix.length(), dest, pos);
+        pos += prefix.length();
+        pos = word ? writeWord(dest, pos, Utils.address(arg0, arg1)) : writeByte(dest, pos, arg0);
+        suffix.getChars(0, suffix.length(), dest, pos);
+        return pos + suffix.length();
+    }
+
+    private static int writeByte(char[] dest, int pos, int value) {
+        dest[pos] = HEX_DIGITS[(value >> 4) & 0xf];
+        dest[pos + 1] = HEX_DIGITS[value & 0xf];
+        return pos + 2;
+    }
+
+    private static int writeWord(char[] dest, int pos, int value) {
+        return writeByte(dest, writeByte(dest, pos, value >> 8), value);
+    }
+
+}
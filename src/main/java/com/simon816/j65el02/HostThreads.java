@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.simon816.j65el02;
+
+/**
+ * Creates the threads used by {@link MachineHost}.
+ *
+ * <p>
+ * This is the Java 8 version, which only supports platform threads. The multi-release jar built
+ * with the java21 option replaces it with a version that can create virtual threads.
+ * </p>
+ */
+final class HostThreads {
+
+    private HostThreads() {
+    }
+
+    static boolean supportsVirtualThreads() {
+        return false;
+    }
+
+    static Thread newThread(Runnable task, String name, boolean virtual) {
+        if (virtual) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+        return new Thread(task, name);
+    }
+
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.simon816.j65el02.device.RedBus.Peripheral;
+
+/**
+ * A log of the inputs to a machine that do not come from the guest program, used to replay a run
+ * exactly. See {@link Machine#startRecording} and {@link Machine#startReplay}.
+ *
+ * <p>
+ * The inputs are WAI wake-ups, inputs delivered to peripherals through {@link Machine#input}, and
+ * the outcome of every disk drive operation along with the data read. Each is logged with the
+ * {@link CpuState#stepCounter} at which it took effect. The log starts with a snapshot of the
+ * machine, followed by the events. An event is its type, the number of steps since the previous
+ * event as a variable length integer, and its data.
+ * </p>
+ *
+ * <p>
+ * Events are encoded on the CPU thread into a buffer, which is handed to a writer thread at the
+ * end of every run, so recording never waits for the output stream.
+ * </p>
+ */
+public final class InputLog {
+
+    private static final int LOG_MAGIC = 0x4a363552; // "J65R"
+    private static final int LOG_VERSION = 1;
+
+    private static final int EVENT_WAKE = 0;
+    private static final int EVENT_INPUT = 1;
+    private static final int EVENT_DISK_DATA = 2;
+    private static final int EVENT_DISK_OK = 3;
+    private static final int EVENT_DISK_ERROR = 4;
+    private static final int EVENT_END = 0xff;
+
+    /* Events are handed to the writer once the buffer reaches this size, or at the end of a run */
+    private static final int CHUNK_SIZE = 0x4000;
+
+    private static final int DISK_DATA_SIZE = 0x80;
+
+    private final Machine machine;
+    private final CpuState state;
+    private final boolean replaying;
+    private long lastStep;
+
+    /* Recording */
+    private final Queue<int[]> pendingInputs = new ConcurrentLinkedQueue<>();
+    private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+    private Thread writer;
+    private volatile IOException writeError;
+    private byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkLength;
+
+    /* Replaying, the event that will be applied next */
+    private DataInputStream in;
+    private int nextType;
+    private long nextStep;
+    private int nextId;
+    private int nextValue;
+    private final byte[] nextData = new byte[DISK_DATA_SIZE];
+
+    private InputLog(Machine machine, boolean replaying) {
+        this.machine = machine;
+        this.state = machine.getCpu().getCpuState();
+        this.replaying = replaying;
+    }
+
+    /**
+     * Starts recording a machine, writing its current state to the start of the log.
+     */
+    static InputLog record(Machine machine, OutputStream out) throws IOException {
+        InputLog log = new InputLog(machine, false);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(header);
+        data.writeInt(LOG_MAGIC);
+        data.writeShort(LOG_VERSION);
+        machine.saveState(data);
+        log.chunks.add(header.toByteArray());
+        log.lastStep = log.state.stepCounter;
+        log.writer = new Thread(() -> log.writeChunks(out), "InputLog writer");
+        log.writer.setDaemon(true);
+        log.writer.start();
+        return log;
+    }
+
+    /**
+     * Opens a log to replay, restoring the machine to the state at the start of the log. The
+     * replay starts once {@link #beginReplay} is called.
+     */
+    static InputLog replay(Machine machine, InputStream in) throws IOException {
+        InputLog log = new InputLog(machine, true);
+        log.in = new DataInputStream(in);
+        if (log.in.readInt() != LOG_MAGIC) {
+            throw new IOException("Not an input log");
+        }
+        int version = log.in.readUnsignedShort();
+        if (version != LOG_VERSION) {
+            throw new IOException("Unsupported input log version " + version);
+        }
+        machine.loadState(log.in);
+        log.lastStep = log.state.stepCounter;
+        return log;
+    }
+
+    /**
+     * Reads the first event, called once the machine is using this log. The replay finishes
+     * straight away if the log is empty.
+     */
+    void beginReplay() {
+        readEvent();
+    }
+
+    public boolean isReplaying() {
+        return this.replaying;
+    }
+
+    /**
+     * Queues an input from another thread, to be applied and logged by the CPU thread. Inputs
+     * from the host are ignored while replaying.
+     */
+    void submitInput(int id, int value) {
+        if (!this.replaying) {
+            this.pendingInputs.add(new int[] {id, value});
+        }
+    }
+
+    /**
+     * Applies the inputs that are due, called by the CPU thread between blocks.
+     */
+    void applyInputs() {
+        if (this.replaying) {
+            while (this.nextType == EVENT_INPUT && this.nextStep == this.state.stepCounter) {
+                applyInput(this.nextId, this.nextValue);
+                readEvent();
+            }
+            if (this.nextStep < this.state.stepCounter) {
+                throw diverged();
+            }
+        } else {
+            int[] input;
+            while ((input = this.pendingInputs.poll()) != null) {
+                applyInput(input[0], input[1]);
+                writeEvent(EVENT_INPUT);
+                writeByte(input[0]);
+                writeVarLong(input[1] & 0xffffffffL);
+            }
+        }
+    }
+
+    private void applyInput(int id, int value) {
+        Peripheral peripheral = this.machine.getBus().getRedBus().getPeripheral(id);
+        if (peripheral != null) {
+            peripheral.applyInput(value);
+            this.machine.signal();
+        }
+    }
+
+    /**
+     * Logs that the CPU woke from WAI.
+     */
+    void recordWake() {
+        writeEvent(EVENT_WAKE);
+    }
+
+    /**
+     * Replays a wake from WAI. Inputs logged at the same step before the wake are applied first.
+     */
+    void replayWake() {
+        applyInputs();
+        if (this.nextType != EVENT_WAKE || this.nextStep != this.state.stepCounter) {
+            throw diverged();
+        }
+        readEvent();
+    }
+
+    /**
+     * Logs the outcome of a disk drive operation.
+     *
+     * @param result The new value of the command register
+     * @param data The sector buffer, if data was read into it, otherwise null
+     */
+    public void recordDisk(int result, ByteBuffer data) {
+        if (result != 0) {
+            writeEvent(EVENT_DISK_ERROR);
+        } else if (data != null) {
+            writeEvent(EVENT_DISK_DATA);
+            ensureCapacity(DISK_DATA_SIZE);
+            ByteBuffer buffer = data.duplicate();
+            buffer.clear();
+            buffer.get(this.chunk, this.chunkLength, DISK_DATA_SIZE);
+            this.chunkLength += DISK_DATA_SIZE;
+        } else {
+            writeEvent(EVENT_DISK_OK);
+        }
+    }
+
+    /**
+     * Replays the outcome of a disk drive operation in place of running it.
+     *
+     * @param data The sector buffer, which is filled if the operation read data
+     * @return The new value of the command register
+     */
+    public int replayDisk(ByteBuffer data) {
+        if (this.nextStep != this.state.stepCounter) {
+            throw diverged();
+        }
+        int result;
+        switch (this.nextType) {
+            case EVENT_DISK_DATA:
+                ByteBuffer buffer = data.duplicate();
+                buffer.clear();
+                buffer.put(this.nextData);
+                result = 0;
+                break;
+            case EVENT_DISK_OK:
+                result = 0;
+                break;
+            case EVENT_DISK_ERROR:
+                result = 0xff;
+                break;
+            default:
+                throw diverged();
+        }
+        readEvent();
+        return result;
+    }
+
+    private IllegalStateException diverged() {
+        return new IllegalStateException("Replay diverged from the log at step " + this.state.stepCounter);
+    }
+
+    private void readEvent() {
+        try {
+            int type = this.in.read();
+            if (type == -1 || type == EVENT_END) {
+                this.nextType = EVENT_END;
+                this.nextStep = Long.MAX_VALUE;
+                this.in.close();
+                this.machine.finishReplay(this);
+                return;
+            }
+            this.nextType = type;
+            this.nextStep = this.lastStep += readVarLong();
+            switch (type) {
+                case EVENT_INPUT:
+                    this.nextId = this.in.readUnsignedByte();
+                    this.nextValue = (int) readVarLong();
+                    break;
+                case EVENT_DISK_DATA:
+                    this.in.readFully(this.nextData);
+                    break;
+                case EVENT_WAKE:
+                case EVENT_DISK_OK:
+                case EVENT_DISK_ERROR:
+                    break;
+                default:
+                    throw new IOException("Unknown event type " + type);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = this.in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private void writeEvent(int type) {
+        long step = this.state.stepCounter;
+        writeByte(type);
+        writeVarLong(step - this.lastStep);
+        this.lastStep = step;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        this.chunk[this.chunkLength++] = (byte) b;
+    }
+
+    private void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            this.chunk[this.chunkLength++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        this.chunk[this.chunkLength++] = (byte) value;
+    }
+
+    private void ensureCapacity(int length) {
+        if (this.chunkLength + length > this.chunk.length) {
+            this.chunk = Arrays.copyOf(this.chunk, Math.max(this.chunk.length * 2, this.chunkLength + length));
+        }
+    }
+
+    /**
+     * Hands the logged events to the writer thread, called by the CPU thread at the end of a run.
+     */
+    void flush() {
+        if (this.chunkLength > 0) {
+            this.chunks.add(Arrays.copyOf(this.chunk, this.chunkLength));
+            this.chunkLength = 0;
+            if (this.chunk.length > CHUNK_SIZE) {
+                this.chunk = new byte[CHUNK_SIZE];
+            }
+        }
+    }
+
+    /**
+     * Ends the log. When recording, this waits for the writer to write out every event.
+     *
+     * @throws IOException If writing the log failed
+     */
+    void close() throws IOException {
+        if (this.replaying) {
+            this.in.close();
+            return;
+        }
+        writeByte(EVENT_END);
+        flush();
+        // An empty chunk tells the writer to stop
+        this.chunks.add(new byte[0]);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                this.writer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.writeError != null) {
+            throw this.writeError;
+        }
+    }
+
+    private void writeChunks(OutputStream out) {
+        try {
+            while (true) {
+                byte[] chunk = this.chunks.take();
+                if (chunk.length == 0) {
+                    break;
+                }
+                // After an error, chunks are still taken so that they do not build up
+                if (this.writeError == null) {
+                    try {
+                        out.write(chunk);
+                        if (this.chunks.isEmpty()) {
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        this.writeError = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -237,7 +237,7 @@ public interface InstructionTable {
         Mode.REL, Mode.INY, Mode.ZPI, Mode.ISY,   // 0x30-0x33
         Mode.ZPX, Mode.ZPX, Mode.ZPX, Mode.IRY,   // 0x34-0x37
         Mode.IMP, Mode.ABY, Mode.IMP, Mode.NUL,   // 0x38-0x3b
-        Mode.NUL, Mode.ABX, Mode.ABX, Mode.ABX,   // 0x3c-0x3f
+        Mode.ABX, Mode.ABX, Mode.ABX, Mode.ABX,   // 0x3c-0x3f
         Mode.IMP, Mode.XIN, Mode.NUL, Mode.ASP,   // 0x40-0x43
         Mode.ABS, Mode.ZPG, Mode.ZPG, Mode.ABR,   // 0x44-0x47
         Mode.IMP, Mode.IMM, Mode.ACC, Mode.NUL,   // 0x48-0x4b
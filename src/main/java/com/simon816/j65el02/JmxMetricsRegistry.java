@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes metrics as the read-only attributes of an MBean, one bean per registry. Usually each
+ * machine gets its own registry:
+ *
+ * <pre>
+ * JmxMetricsRegistry registry = new JmxMetricsRegistry("machine-1");
+ * machine.getMetrics().register(registry);
+ * registry.start();
+ * </pre>
+ */
+public final class JmxMetricsRegistry implements MetricsRegistry, DynamicMBean {
+
+    private static final String DOMAIN = "com.simon816.j65el02";
+
+    private final MBeanServer server;
+    private final ObjectName objectName;
+    private final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a registry for the platform MBean server, named
+     * {@code com.simon816.j65el02:type=Machine,name=<name>}.
+     *
+     * @param name The name of the machine
+     * @throws JMException If the name cannot be used in an object name
+     */
+    public JmxMetricsRegistry(String name) throws JMException {
+        this(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName(DOMAIN + ":type=Machine,name=" + ObjectName.quote(name)));
+    }
+
+    public JmxMetricsRegistry(MBeanServer server, ObjectName objectName) {
+        this.server = server;
+        this.objectName = objectName;
+    }
+
+    public ObjectName getObjectName() {
+        return this.objectName;
+    }
+
+    @Override
+    public void counter(String name, String description, LongSupplier value) {
+        this.metrics.put(name, new Metric(description, Long.class.getName(), value::getAsLong));
+    }
+
+    @Override
+    public void gauge(String name, String description, DoubleSupplier value) {
+        this.metrics.put(name, new Metric(description, Double.class.getName(), value::getAsDouble));
+    }
+
+    /**
+     * Registers the bean with the server.
+     *
+     * @throws JMException If it cannot be registered
+     */
+    public void start() throws JMException {
+        this.server.registerMBean(this, this.objectName);
+    }
+
+    /**
+     * Unregisters the bean, if it is registered.
+     *
+     * @throws JMException If it cannot be unregistered
+     */
+    public void stop() throws JMException {
+        if (this.server.isRegistered(this.objectName)) {
+            this.server.unregisterMBean(this.objectName);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Metric metric = this.metrics.get(attribute);
+        if (metric == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return metric.value.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Metric metric = this.metrics.get(attribute);
+            if (metric != null) {
+                list.add(new Attribute(attribute, metric.value.get()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws MBeanException, ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Metric> entry : this.metrics.entrySet()) {
+            Metric metric = entry.getValue();
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), metric.type, metric.description,
+                    true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "J65el02 machine metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+    }
+
+    private static final class Metric {
+
+        final String description;
+        final String type;
+        final Supplier<Object> value;
+
+        Metric(String description, String type, Supplier<Object> value) {
+            this.description = description;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+}
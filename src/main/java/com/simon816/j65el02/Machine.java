@@ -19,31 +19,82 @@
 
 package com.simon816.j65el02;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
+import com.simon816.j65el02.device.Device;
 import com.simon816.j65el02.device.Memory;
 import com.simon816.j65el02.device.RedBus;
 import com.simon816.j65el02.device.RedBus.Peripheral;
 
 /**
  * This class is the wrapper for the machine as a whole. It provides access to the bus so the
- * machine can be configured. The machine can be started as a runnable or by calling {@link #step}
- * by an external runner.
+ * machine can be configured. The machine can be started as a runnable or by calling {@link #step},
+ * {@link #runFor} or {@link #runUntil} by an external runner.
  */
 public class Machine implements Runnable {
 
-    private boolean isRunning = false;
-    private Semaphore interruptWait = new Semaphore(2);
+    /* Instructions run by each runFor call from run, so that stop is noticed quickly */
+    private static final int RUN_BATCH = 10000;
+
+    /* Blocks run between checks of the deadline in runUntil */
+    private static final int DEADLINE_CHECK_INTERVAL = 16;
+
+    /* How a run waits for a signal after WAI */
+    private static final int WAIT_BLOCK = 0;
+    private static final int WAIT_DEADLINE = 1;
+    private static final int WAIT_NONE = 2;
+
+    /* Start of every snapshot, "J65S", followed by the format version and kind */
+    private static final int SNAPSHOT_MAGIC = 0x4a363553;
+    private static final int SNAPSHOT_VERSION = 3;
+    private static final int SNAPSHOT_FULL = 0;
+    private static final int SNAPSHOT_DELTA = 1;
+
+    private volatile boolean isRunning = false;
+
+    /*
+     * Set by signal and cleared when a WAI wakes up, in a single getAndSet so that a signal
+     * arriving during the wake-up is kept for the next WAI. The runner thread only parks while in
+     * WAI, and stores itself in waiter first so that signal knows to unpark it.
+     */
+    private final AtomicBoolean signalled = new AtomicBoolean(true);
+    private volatile Thread waiter;
+
+    /* Whether a run returned while still waiting for a signal after WAI */
+    private boolean waitPending;
+    /* When the current wait for a signal started, for the metrics */
+    private long waitStart;
+
+    /* Called on every signal, used by MachinePool to reschedule machines waiting in WAI */
+    private volatile Runnable signalListener;
+
+    /* The log being recorded or replayed, if any */
+    private volatile InputLog inputLog;
 
     private final Bus bus;
     private final Cpu cpu;
     private final RedBus redBus;
+    private final MachineMetrics metrics = new MachineMetrics(this);
 
     private int defaultDriveId = 2;
     private int defaultMonitorId = 1;
 
+    /* Size of the last snapshot, to size the buffer for the next one */
+    private int snapshotSize = 0x1000;
+
     /**
      * Constructs the machine with and empty 8k of memory.
      */
@@ -87,14 +138,44 @@ public class Machine implements Runnable {
         reset();
     }
 
+    /**
+     * Constructs a fork of a machine, with its memory shared copy-on-write.
+     */
+    private Machine(Machine template) {
+        this.cpu = new Cpu();
+        this.redBus = new RedBus();
+        this.bus = new Bus(this.redBus);
+        this.cpu.setBus(this.bus);
+        for (Device device : template.bus.getDevices()) {
+            if (!(device instanceof Memory)) {
+                throw new UnsupportedOperationException("Cannot fork " + device.getClass().getName());
+            }
+            this.bus.addDevice(((Memory) device).fork());
+        }
+        this.cpu.copyFrom(template.cpu);
+        this.defaultDriveId = template.defaultDriveId;
+        this.defaultMonitorId = template.defaultMonitorId;
+        this.signalled.set(template.signalled.get());
+        this.waitPending = template.waitPending;
+        this.waitStart = System.nanoTime();
+    }
+
     public Bus getBus() {
         return this.bus;
     }
 
+    public Cpu getCpu() {
+        return this.cpu;
+    }
+
     public void setPeripheral(int id, Peripheral peripheral) {
         this.redBus.setPeripheral(id, peripheral);
     }
 
+    public MachineMetrics getMetrics() {
+        return this.metrics;
+    }
+
     public int getDefaultDriveId() {
         return this.defaultDriveId;
     }
@@ -117,9 +198,331 @@ public class Machine implements Runnable {
      * If the CPU is currently blocked by a WAI, this will wake it up.
      */
     public void signal() {
-        if (this.interruptWait.availablePermits() < 2) {
-            this.interruptWait.release();
+        this.metrics.recordSignal();
+        wake();
+    }
+
+    /* Wakes the CPU from WAI without counting a signal, for the host stopping the machine */
+    private void wake() {
+        if (!this.signalled.get()) {
+            this.signalled.set(true);
+        }
+        Thread waiter = this.waiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        Runnable signalListener = this.signalListener;
+        if (signalListener != null) {
+            signalListener.run();
+        }
+    }
+
+    synchronized void setSignalListener(Runnable signalListener) {
+        this.signalListener = signalListener;
+    }
+
+    /* Removes the listener only if it is still the given one, and not one set since */
+    synchronized void clearSignalListener(Runnable signalListener) {
+        if (this.signalListener == signalListener) {
+            this.signalListener = null;
+        }
+    }
+
+    /**
+     * Writes the complete state of the machine: the CPU, every memory device, the RedBus and the
+     * registers of every peripheral. The machine must not be running.
+     *
+     * <p>
+     * The snapshot can be loaded into any machine with the same memory size and the same
+     * peripherals attached, for example to start new machines from an already booted image.
+     * </p>
+     *
+     * @param out The output
+     * @throws IOException If the output fails
+     */
+    public void saveState(DataOutput out) throws IOException {
+        writeHeader(out, SNAPSHOT_FULL);
+        this.bus.saveState(out);
+    }
+
+    /**
+     * Replaces the complete state of the machine with a snapshot written by {@link #saveState}.
+     * The machine must not be running. This starts a new checkpoint for {@link #saveDelta}.
+     *
+     * <p>
+     * The header, the CPU state and the devices are checked before anything is changed, so a
+     * snapshot of a different machine is rejected and leaves this one as it was. If the input
+     * fails part way through the memory or peripheral state, or a peripheral is missing, the
+     * machine is left partly restored and must be reset or restored again before it is run.
+     * </p>
+     *
+     * @param in The input
+     * @throws IOException If the input fails, or the snapshot does not match this machine
+     */
+    public void loadState(DataInput in) throws IOException {
+        Header header = readHeader(in, SNAPSHOT_FULL);
+        this.bus.loadState(in);
+        applyHeader(header);
+    }
+
+    /**
+     * Writes an incremental snapshot, which holds only the memory pages written since the last
+     * checkpoint, then starts a new checkpoint. CPU and peripheral state is always written in
+     * full. The machine must not be running.
+     *
+     * <p>
+     * A new machine or fork has every page dirty, so the first delta it writes holds all of memory
+     * and is the base of a chain. The chain is restored by loading each delta in order with
+     * {@link #loadDelta} into a machine like the one that wrote them. Loading a full snapshot also
+     * starts a new checkpoint, so deltas taken after a restore can be loaded on top of the same
+     * snapshot.
+     * </p>
+     *
+     * @param out The output
+     * @throws IOException If the output fails
+     */
+    public void saveDelta(DataOutput out) throws IOException {
+        writeHeader(out, SNAPSHOT_DELTA);
+        this.bus.saveDelta(out);
+    }
+
+    /**
+     * Applies an incremental snapshot written by {@link #saveDelta}. The machine must not be
+     * running. A snapshot that does not match is handled as in {@link #loadState}.
+     *
+     * @param in The input
+     * @throws IOException If the input fails, or the snapshot does not match this machine
+     */
+    public void loadDelta(DataInput in) throws IOException {
+        Header header = readHeader(in, SNAPSHOT_DELTA);
+        this.bus.loadDelta(in);
+        applyHeader(header);
+    }
+
+    private void writeHeader(DataOutput out, int kind) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeShort(SNAPSHOT_VERSION);
+        out.writeByte(kind);
+        out.writeByte(this.defaultDriveId);
+        out.writeByte(this.defaultMonitorId);
+        out.writeBoolean(this.signalled.get());
+        out.writeBoolean(this.waitPending);
+        this.cpu.saveState(out);
+    }
+
+    /* The machine and CPU state from a snapshot header, held until the devices have loaded */
+    private static final class Header {
+
+        final CpuState cpuState = new CpuState();
+        int defaultDriveId;
+        int defaultMonitorId;
+        boolean signalled;
+        boolean waitPending;
+    }
+
+    private Header readHeader(DataInput in, int kind) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a machine snapshot");
+        }
+        int version = in.readUnsignedShort();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        if (in.readUnsignedByte() != kind) {
+            throw new IOException(kind == SNAPSHOT_FULL ? "Snapshot is a delta" : "Snapshot is not a delta");
+        }
+        Header header = new Header();
+        header.defaultDriveId = in.readUnsignedByte();
+        header.defaultMonitorId = in.readUnsignedByte();
+        header.signalled = in.readBoolean();
+        header.waitPending = in.readBoolean();
+        header.cpuState.readFrom(in);
+        return header;
+    }
+
+    private void applyHeader(Header header) {
+        this.defaultDriveId = header.defaultDriveId;
+        this.defaultMonitorId = header.defaultMonitorId;
+        this.signalled.set(header.signalled);
+        this.waitPending = header.waitPending;
+        this.waitStart = System.nanoTime();
+        this.cpu.loadState(header.cpuState);
+    }
+
+    /**
+     * Takes a snapshot of the machine, see {@link #saveState}.
+     *
+     * @return The snapshot
+     */
+    public byte[] snapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(this.snapshotSize);
+        try {
+            saveState(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.snapshotSize = bytes.size();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Takes an incremental snapshot of the machine, see {@link #saveDelta}.
+     *
+     * @return The snapshot
+     */
+    public byte[] snapshotDelta() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            saveDelta(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores a snapshot taken by {@link #snapshot}, see {@link #loadState}.
+     *
+     * @param snapshot The snapshot
+     * @throws IOException If the snapshot is invalid or does not match this machine
+     */
+    public void restore(byte[] snapshot) throws IOException {
+        loadState(new DataInputStream(new ByteArrayInputStream(snapshot)));
+    }
+
+    /**
+     * Applies an incremental snapshot taken by {@link #snapshotDelta}, see {@link #loadDelta}.
+     *
+     * @param delta The snapshot
+     * @throws IOException If the snapshot is invalid or does not match this machine
+     */
+    public void restoreDelta(byte[] delta) throws IOException {
+        loadDelta(new DataInputStream(new ByteArrayInputStream(delta)));
+    }
+
+    /**
+     * Delivers an input from the host to a peripheral, such as a key press, and wakes the CPU.
+     * While recording, the input is applied by the thread running the machine and logged. While
+     * replaying, inputs from the host are ignored.
+     *
+     * @param peripheral The peripheral, which must be attached to this machine
+     * @param value The input
+     */
+    public void input(Peripheral peripheral, int value) {
+        InputLog inputLog = this.inputLog;
+        if (inputLog == null) {
+            peripheral.applyInput(value);
+            signal();
+            return;
+        }
+        int id = this.redBus.getPeripheralId(peripheral);
+        if (id == -1) {
+            throw new IllegalArgumentException("Peripheral is not attached");
+        }
+        inputLog.submitInput(id, value);
+        // The runner signals once it has applied the input
+        wake();
+    }
+
+    /**
+     * Starts recording every input that does not come from the guest program, so that the run can
+     * be replayed exactly with {@link #startReplay}. The log starts with a snapshot of the current
+     * state. The machine must not be running.
+     *
+     * <p>
+     * The log is written by a background thread. While recording, the machine must only be run
+     * with the run methods, not {@link #step}, and not be reset or restored.
+     * </p>
+     *
+     * @param out The stream to write the log to
+     * @throws IOException If the snapshot could not be taken
+     */
+    public void startRecording(OutputStream out) throws IOException {
+        if (this.inputLog != null) {
+            throw new IllegalStateException("Already recording or replaying");
+        }
+        this.inputLog = InputLog.record(this, out);
+    }
+
+    /**
+     * Stops recording, and waits for the whole log to be written. The machine must not be
+     * running.
+     *
+     * @throws IOException If writing the log failed
+     */
+    public void stopRecording() throws IOException {
+        InputLog inputLog = this.inputLog;
+        if (inputLog == null || inputLog.isReplaying()) {
+            throw new IllegalStateException("Not recording");
+        }
+        this.inputLog = null;
+        inputLog.close();
+    }
+
+    /**
+     * Restores the state at the start of a log written by {@link #startRecording}, then replays
+     * its inputs as the machine runs. Replay ends when the end of the log is reached, after which
+     * the machine takes inputs from the host again. The machine must not be running.
+     *
+     * @param in The stream to read the log from
+     * @throws IOException If the log could not be read, or does not match this machine
+     * @throws IllegalStateException From the run methods, if the run does not match the log
+     */
+    public void startReplay(InputStream in) throws IOException {
+        if (this.inputLog != null) {
+            throw new IllegalStateException("Already recording or replaying");
         }
+        InputLog inputLog = InputLog.replay(this, new BufferedInputStream(in));
+        this.inputLog = inputLog;
+        inputLog.beginReplay();
+    }
+
+    public boolean isReplaying() {
+        InputLog inputLog = this.inputLog;
+        return inputLog != null && inputLog.isReplaying();
+    }
+
+    /**
+     * Gets the log being recorded or replayed, used by peripherals to log their inputs.
+     *
+     * @return The log, or null if not recording or replaying
+     */
+    public InputLog getInputLog() {
+        return this.inputLog;
+    }
+
+    void finishReplay(InputLog inputLog) {
+        if (this.inputLog == inputLog) {
+            this.inputLog = null;
+        }
+    }
+
+    /**
+     * Creates a copy of this machine, such as from a template that has already booted. Memory is
+     * shared between the machines and each page is only copied when either machine first writes
+     * to it, so forking is fast and a fork only uses memory for the pages it changes. This
+     * machine must not be running.
+     *
+     * <p>
+     * Peripherals hold host resources such as drives and displays, so they are not copied. The
+     * setup function must attach peripherals to the new machine with the same ids as this one,
+     * and their registers are then copied from this machine.
+     * </p>
+     *
+     * @param setup Called with the new machine to attach its peripherals
+     * @return The new machine
+     */
+    public Machine fork(Consumer<Machine> setup) {
+        Machine machine = new Machine(this);
+        setup.accept(machine);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            this.redBus.saveState(new DataOutputStream(bytes));
+            machine.redBus.loadState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        } catch (IOException e) {
+            throw new IllegalStateException("Peripherals do not match", e);
+        }
+        return machine;
     }
 
     public boolean isRunning() {
@@ -130,21 +533,19 @@ public class Machine implements Runnable {
     public void run() {
         this.isRunning = true;
         do {
-            step();
+            runFor(RUN_BATCH);
         } while (this.isRunning);
     }
 
     public void stop() {
         this.isRunning = false;
-        while (this.interruptWait.availablePermits() <= 0) {
-            this.interruptWait.release();
-        }
-        this.interruptWait.drainPermits();
-        this.interruptWait.release(2);
+        // Wakes the runner if it is in WAI
+        wake();
     }
 
     public void reset() {
         stop();
+        this.waitPending = false;
         this.cpu.reset();
         this.bus.write(0, this.defaultDriveId);
         this.bus.write(1, this.defaultMonitorId);
@@ -156,7 +557,9 @@ public class Machine implements Runnable {
      * If waiting for an interrupt, this blocks until {@link #signal} is called.
      */
     public void step() {
-        this.interruptWait.acquireUninterruptibly();
+        if (this.inputLog != null) {
+            throw new IllegalStateException("Cannot single step while recording or replaying");
+        }
         this.cpu.step();
         this.bus.update();
         if (this.cpu.isStopped()) {
@@ -164,12 +567,204 @@ public class Machine implements Runnable {
             return;
         }
         if (this.cpu.isWaitingForInterrupt()) {
-            this.interruptWait.acquireUninterruptibly();
-            this.cpu.assertIrq();
+            awaitSignal(0, WAIT_BLOCK);
+        }
+    }
+
+    /**
+     * Runs up to the given number of instructions of the simulated system, stopping early if the
+     * CPU stops.
+     *
+     * <p>
+     * Unlike {@link #step}, peripherals are not updated after every instruction. They are updated
+     * at the end of the run, after any instructions that access a device rather than RAM, and
+     * before waiting for an interrupt. If waiting for an interrupt, this blocks until
+     * {@link #signal} is called, and then returns early.
+     * </p>
+     *
+     * @param instructions The number of instructions to run
+     * @return The number of instructions run
+     */
+    public long runFor(long instructions) {
+        return execute(instructions, 0, WAIT_BLOCK);
+    }
+
+    /**
+     * Runs up to the given number of instructions like {@link #runFor}, but never blocks. If the
+     * CPU waits for an interrupt and no signal is pending, this returns with the CPU still
+     * waiting, and {@link #isWaitingForSignal} is true until {@link #signal} is called.
+     *
+     * @param instructions The number of instructions to run
+     * @return The number of instructions run
+     */
+    public long runSlice(long instructions) {
+        return execute(instructions, 0, WAIT_NONE);
+    }
+
+    /**
+     * Whether the CPU is waiting for an interrupt after a run returned early, and no signal has
+     * arrived since. A machine in this state will not run any instructions.
+     */
+    public boolean isWaitingForSignal() {
+        return this.waitPending && !this.signalled.get();
+    }
+
+    /**
+     * Runs the simulated system until the given time, stopping early if the CPU stops. If waiting
+     * for an interrupt that does not arrive by the deadline, this returns with the CPU still
+     * waiting, and the next run carries on waiting. Peripherals are updated as for
+     * {@link #runFor}.
+     *
+     * @param deadline The time to stop, as given by {@link System#nanoTime}
+     * @return The number of instructions run
+     */
+    public long runUntil(long deadline) {
+        return execute(Long.MAX_VALUE, deadline, WAIT_DEADLINE);
+    }
+
+    private long execute(long budget, long deadline, int waitMode) {
+        InputLog inputLog = this.inputLog;
+        if (inputLog != null) {
+            return executeLogged(budget, deadline, waitMode, inputLog);
+        }
+        long executed = 0;
+        long deviceAccesses = this.bus.getDeviceAccesses();
+        int blocks = 0;
+        // Carry on waiting from the previous run
+        if (this.waitPending && !awaitSignal(deadline, waitMode)) {
+            return 0;
+        }
+        while (executed < budget) {
+            if (budget - executed >= Cpu.MAX_STEP_BLOCK_INSTRUCTIONS) {
+                executed += this.cpu.stepBlock();
+            } else {
+                this.cpu.step();
+                executed++;
+            }
+            if (this.bus.getDeviceAccesses() != deviceAccesses) {
+                this.bus.update();
+                deviceAccesses = this.bus.getDeviceAccesses();
+            }
+            if (this.cpu.isStopped()) {
+                this.stop();
+                return executed;
+            }
+            if (this.cpu.isWaitingForInterrupt()) {
+                this.bus.update();
+                // Return after blocking so that the caller can see a stop that woke the CPU
+                if (!awaitSignal(deadline, waitMode) || waitMode == WAIT_BLOCK) {
+                    return executed;
+                }
+            }
+            if (waitMode == WAIT_DEADLINE && ++blocks == DEADLINE_CHECK_INTERVAL) {
+                blocks = 0;
+                if (System.nanoTime() - deadline >= 0) {
+                    break;
+                }
+            }
+        }
+        this.bus.update();
+        return executed;
+    }
+
+    /**
+     * Like execute, but recording or replaying inputs. Blocks are always run whole, which can take
+     * a run a little past its budget, and peripherals are only updated after device accesses and
+     * before WAI. Runs therefore split into the same blocks, with the same peripheral updates,
+     * however they are batched, so that each input is replayed between the same instructions as
+     * it was recorded.
+     */
+    private long executeLogged(long budget, long deadline, int waitMode, InputLog inputLog) {
+        long executed = 0;
+        long deviceAccesses = this.bus.getDeviceAccesses();
+        int blocks = 0;
+        inputLog.applyInputs();
+        if (this.waitPending && !awaitSignal(deadline, waitMode)) {
+            inputLog.flush();
+            return 0;
+        }
+        while (executed < budget) {
+            executed += this.cpu.stepBlock();
+            if (this.bus.getDeviceAccesses() != deviceAccesses) {
+                this.bus.update();
+                deviceAccesses = this.bus.getDeviceAccesses();
+            }
+            if (this.cpu.isStopped()) {
+                this.stop();
+                break;
+            }
+            if (this.cpu.isWaitingForInterrupt()) {
+                this.bus.update();
+                if (!awaitSignal(deadline, waitMode) || waitMode == WAIT_BLOCK) {
+                    break;
+                }
+            }
+            inputLog.applyInputs();
+            if (waitMode == WAIT_DEADLINE && ++blocks == DEADLINE_CHECK_INTERVAL) {
+                blocks = 0;
+                if (System.nanoTime() - deadline >= 0) {
+                    break;
+                }
+            }
+        }
+        inputLog.flush();
+        return executed;
+    }
+
+    /**
+     * Blocks until {@link #signal} is called, then wakes the CPU from WAI. Returns straight away if
+     * a signal arrived since the last wait.
+     *
+     * @return False if the deadline passed first, or the wait mode does not block
+     */
+    private boolean awaitSignal(long deadline, int waitMode) {
+        InputLog inputLog = this.inputLog;
+        if (inputLog != null && inputLog.isReplaying()) {
+            // Wake-ups come from the log instead
+            inputLog.replayWake();
+            this.signalled.set(false);
+        } else if (!this.signalled.getAndSet(false)) {
+            if (!this.waitPending) {
+                this.waitStart = System.nanoTime();
+            }
+            if (waitMode == WAIT_NONE) {
+                this.waitPending = true;
+                return false;
+            }
+            boolean interrupted = false;
+            this.waiter = Thread.currentThread();
+            try {
+                while (!this.signalled.getAndSet(false)) {
+                    if (waitMode == WAIT_BLOCK) {
+                        LockSupport.park(this);
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            this.waitPending = true;
+                            return false;
+                        }
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                    // Like the old semaphore, waiting is not interruptible
+                    interrupted |= Thread.interrupted();
+                }
+            } finally {
+                this.waiter = null;
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            this.metrics.recordWait(System.nanoTime() - this.waitStart);
+        } else if (this.waitPending) {
+            // The signal ended a wait carried over from an earlier run
+            this.metrics.recordWait(System.nanoTime() - this.waitStart);
         }
-        if (this.interruptWait.availablePermits() < 2) {
-            this.interruptWait.release();
+        if (inputLog != null && !inputLog.isReplaying()) {
+            inputLog.recordWake();
         }
+        this.waitPending = false;
+        this.cpu.assertIrq();
+        return true;
     }
 
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.simon816.j65el02;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs each machine on a thread of its own, as an alternative to sharing threads with a
+ * {@link MachinePool}.
+ *
+ * <p>
+ * On Java 21 and later, with the multi-release jar, the threads can be virtual threads. A machine
+ * waiting in WAI parks its thread, which frees the carrier thread for other machines, so tens of
+ * thousands of mostly idle machines can be hosted. Disk operations are file I/O, which pins the
+ * carrier thread while it blocks; the scheduler makes up for this by adding a carrier for the
+ * duration. Virtual threads are not time-sliced, so each thread gives way after every batch of
+ * instructions to let other machines run.
+ * </p>
+ */
+public class MachineHost {
+
+    private static final int DEFAULT_BATCH = 10000;
+
+    private final class Hosted implements Runnable {
+
+        final Machine machine;
+        volatile boolean stopped;
+
+        Hosted(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!this.stopped && !this.machine.getCpu().isStopped()) {
+                    this.machine.runFor(MachineHost.this.batchInstructions);
+                    if (MachineHost.this.virtualThreads) {
+                        // A yielding virtual thread can be rescheduled ahead of threads that
+                        // were unparked, a timed park queues it behind them
+                        LockSupport.parkNanos(1);
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            } finally {
+                MachineHost.this.hosted.remove(this.machine, this);
+            }
+        }
+    }
+
+    private final boolean virtualThreads;
+    private final int batchInstructions;
+    private final Map<Machine, Hosted> hosted = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a host.
+     *
+     * @param virtualThreads Whether to use virtual threads, see {@link #supportsVirtualThreads}
+     */
+    public MachineHost(boolean virtualThreads) {
+        this(virtualThreads, DEFAULT_BATCH);
+    }
+
+    /**
+     * Constructs a host.
+     *
+     * @param virtualThreads Whether to use virtual threads, see {@link #supportsVirtualThreads}
+     * @param batchInstructions The number of instructions each machine runs before yielding
+     */
+    public MachineHost(boolean virtualThreads, int batchInstructions) {
+        if (virtualThreads && !supportsVirtualThreads()) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+        if (batchInstructions <= 0) {
+            throw new IllegalArgumentException("Batch must be at least one instruction");
+        }
+        this.virtualThreads = virtualThreads;
+        this.batchInstructions = batchInstructions;
+    }
+
+    /**
+     * Whether virtual threads can be used. This needs the multi-release jar, built with the java21
+     * option, running on Java 21 or later.
+     */
+    public static boolean supportsVirtualThreads() {
+        return HostThreads.supportsVirtualThreads();
+    }
+
+    public boolean isUsingVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    /**
+     * Starts running a machine on a new thread. The machine runs until its CPU stops or it is
+     * stopped with {@link #stop}.
+     *
+     * @param machine The machine, which must not be run in any other way while hosted
+     * @return The thread running the machine
+     */
+    public Thread start(Machine machine) {
+        Hosted hosted = new Hosted(machine);
+        if (this.hosted.putIfAbsent(machine, hosted) != null) {
+            throw new IllegalArgumentException("Machine is already hosted");
+        }
+        Thread thread = HostThreads.newThread(hosted, "Machine-" + Integer.toHexString(machine.hashCode()),
+                this.virtualThreads);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Stops a machine after its current batch, waking it if it is waiting in WAI.
+     *
+     * @param machine The machine
+     * @return True if the machine was hosted
+     */
+    public boolean stop(Machine machine) {
+        Hosted hosted = this.hosted.get(machine);
+        if (hosted == null) {
+            return false;
+        }
+        hosted.stopped = true;
+        machine.stop();
+        return true;
+    }
+
+    public void stopAll() {
+        for (Machine machine : this.hosted.keySet()) {
+            stop(machine);
+        }
+    }
+
+    /**
+     * Gets the number of machines that are still running.
+     */
+    public int size() {
+        return this.hosted.size();
+    }
+
+}
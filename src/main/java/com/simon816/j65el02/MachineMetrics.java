@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+import com.simon816.j65el02.device.RedBus;
+
+/**
+ * Live counters for a machine, published through a {@link MetricsRegistry}.
+ *
+ * Waits and peripheral events are counted on the CPU thread in volatile fields that only that
+ * thread writes. Each count is updated with an ordered store, which costs no more than a plain
+ * write, so collectors on other threads always see a whole value, if one that may be slightly out
+ * of date. Signals can come from any thread, so they are counted with a striped
+ * {@link LongAdder}.
+ *
+ * <p>
+ * The instruction count and the RedBus access counts are written for every instruction or access,
+ * so they stay plain fields and are read without synchronization. This relies on the JVM writing
+ * longs atomically, as every 64-bit JVM does. On a 32-bit JVM a collector may read a torn value.
+ * </p>
+ */
+public final class MachineMetrics {
+
+    private final Machine machine;
+
+    private static final AtomicLongFieldUpdater<MachineMetrics> WAITS = updater("waits");
+    private static final AtomicLongFieldUpdater<MachineMetrics> WAIT_NANOS = updater("waitNanos");
+    private static final AtomicLongFieldUpdater<MachineMetrics> DISK_READS = updater("diskReads");
+    private static final AtomicLongFieldUpdater<MachineMetrics> DISK_WRITES = updater("diskWrites");
+    private static final AtomicLongFieldUpdater<MachineMetrics> DISK_NANOS = updater("diskNanos");
+    private static final AtomicLongFieldUpdater<MachineMetrics> MONITOR_FRAMES = updater("monitorFrames");
+
+    private final LongAdder signals = new LongAdder();
+
+    private volatile long waits;
+    private volatile long waitNanos;
+    private volatile long diskReads;
+    private volatile long diskWrites;
+    private volatile long diskNanos;
+    private volatile long monitorFrames;
+
+    MachineMetrics(Machine machine) {
+        this.machine = machine;
+    }
+
+    void recordSignal() {
+        this.signals.increment();
+    }
+
+    private static AtomicLongFieldUpdater<MachineMetrics> updater(String field) {
+        return AtomicLongFieldUpdater.newUpdater(MachineMetrics.class, field);
+    }
+
+    void recordWait(long nanos) {
+        WAITS.lazySet(this, this.waits + 1);
+        WAIT_NANOS.lazySet(this, this.waitNanos + nanos);
+    }
+
+    /**
+     * Counts a sector read by a disk driver.
+     *
+     * @param nanos How long the driver took
+     */
+    public void recordDiskRead(long nanos) {
+        DISK_READS.lazySet(this, this.diskReads + 1);
+        DISK_NANOS.lazySet(this, this.diskNanos + nanos);
+    }
+
+    /**
+     * Counts a sector written by a disk driver.
+     *
+     * @param nanos How long the driver took
+     */
+    public void recordDiskWrite(long nanos) {
+        DISK_WRITES.lazySet(this, this.diskWrites + 1);
+        DISK_NANOS.lazySet(this, this.diskNanos + nanos);
+    }
+
+    /**
+     * Counts a frame pushed to a monitor driver.
+     */
+    public void recordMonitorFrame() {
+        MONITOR_FRAMES.lazySet(this, this.monitorFrames + 1);
+    }
+
+    public long getSignals() {
+        return this.signals.sum();
+    }
+
+    public long getWaits() {
+        return this.waits;
+    }
+
+    public long getWaitNanos() {
+        return this.waitNanos;
+    }
+
+    public long getDiskReads() {
+        return this.diskReads;
+    }
+
+    public long getDiskWrites() {
+        return this.diskWrites;
+    }
+
+    public long getDiskNanos() {
+        return this.diskNanos;
+    }
+
+    public long getMonitorFrames() {
+        return this.monitorFrames;
+    }
+
+    /**
+     * Publishes every metric of the machine. RedBus access counts are published for the
+     * peripherals attached at the time of the call.
+     *
+     * @param registry The registry
+     */
+    public void register(MetricsRegistry registry) {
+        CpuState state = this.machine.getCpu().getCpuState();
+        LongSupplier instructions = () -> state.stepCounter;
+        registry.counter("cpu.instructions", "Instructions run since the last reset", instructions);
+        registry.gauge("cpu.instructionsPerSecond", "Instructions run per second",
+                new Rate(instructions));
+        registry.counter("cpu.waits", "WAI instructions that had to wait for a signal",
+                this::getWaits);
+        registry.counter("cpu.waitMillis", "Time spent waiting in WAI",
+                () -> this.waitNanos / 1000000);
+        registry.counter("signals", "Signals raised by peripherals", this::getSignals);
+        registry.gauge("signalsPerSecond", "Signals raised per second", new Rate(this::getSignals));
+
+        RedBus redBus = this.machine.getBus().getRedBus();
+        for (int id = 0; id < 0x100; id++) {
+            if (redBus.getPeripheral(id) != null) {
+                int peripheralId = id;
+                registry.counter("redbus." + id + ".accesses",
+                        "Reads and writes through the RedBus window to peripheral " + id,
+                        () -> redBus.getAccessCount(peripheralId));
+            }
+        }
+
+        registry.counter("disk.reads", "Disk sectors read", this::getDiskReads);
+        registry.counter("disk.writes", "Disk sectors written", this::getDiskWrites);
+        registry.gauge("disk.meanLatencyMicros", "Mean time taken by the driver per sector", () -> {
+            long sectors = this.diskReads + this.diskWrites;
+            return sectors == 0 ? 0 : this.diskNanos / 1000.0 / sectors;
+        });
+        registry.counter("monitor.frames", "Frames pushed to the monitor driver",
+                this::getMonitorFrames);
+        registry.gauge("monitor.framesPerSecond", "Frames pushed per second",
+                new Rate(this::getMonitorFrames));
+    }
+
+    /**
+     * The rate a count went up at since the previous read, or since it was created for the first
+     * read.
+     */
+    private static final class Rate implements DoubleSupplier {
+
+        private final LongSupplier count;
+        private long lastCount;
+        private long lastTime;
+
+        Rate(LongSupplier count) {
+            this.count = count;
+            this.lastCount = count.getAsLong();
+            this.lastTime = System.nanoTime();
+        }
+
+        @Override
+        public synchronized double getAsDouble() {
+            long count = this.count.getAsLong();
+            long time = System.nanoTime();
+            long elapsed = time - this.lastTime;
+            if (elapsed <= 0) {
+                return 0;
+            }
+            // The count starts again from zero when the machine is reset
+            long delta = count >= this.lastCount ? count - this.lastCount : count;
+            this.lastCount = count;
+            this.lastTime = time;
+            return delta * 1e9 / elapsed;
+        }
+    }
+
+}
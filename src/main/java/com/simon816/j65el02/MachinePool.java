@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.simon816.j65el02;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many machines on a fixed pool of threads, instead of a thread per machine.
+ *
+ * <p>
+ * Each machine is run in slices of a fixed number of instructions with
+ * {@link Machine#runSlice}. After each slice the machine is queued again on the thread that ran
+ * it, so it tends to stay on the same core, and the queues are first-in first-out so that machines
+ * on a thread take turns. Idle threads steal queued machines from busy ones. A machine waiting for
+ * an interrupt is not queued at all until {@link Machine#signal} is called, and a machine whose CPU
+ * stops is dropped from the pool.
+ * </p>
+ *
+ * <p>
+ * Busy threads only look at their own queue, so machines that are added or woken up from outside
+ * the pool are put in a shared queue instead, which every thread drains between slices.
+ * </p>
+ */
+public class MachinePool {
+
+    /* The state of a machine in the pool */
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int WAITING = 2;
+    private static final int REMOVING = 3;
+    private static final int REMOVED = 4;
+
+    private static final int DEFAULT_SLICE = 10000;
+
+    private final class Slot {
+
+        final Machine machine;
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        final Runnable listener = this::wake;
+
+        /* Added to the pool while this slot was still running, started once it finishes */
+        Slot successor;
+
+        Slot(Machine machine) {
+            this.machine = machine;
+        }
+
+        void wake() {
+            if (this.state.compareAndSet(WAITING, QUEUED)) {
+                schedule(this);
+            }
+        }
+    }
+
+    private final class Slice extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Slot slot;
+
+        Slice(Slot slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        protected void compute() {
+            Slot slot = this.slot;
+            Machine machine = slot.machine;
+            if (!slot.state.compareAndSet(QUEUED, RUNNING)) {
+                return;
+            }
+            machine.runSlice(MachinePool.this.sliceInstructions);
+            forkPending();
+            boolean stopped = machine.getCpu().isStopped();
+            int next = stopped ? REMOVED : machine.isWaitingForSignal() ? WAITING : QUEUED;
+            if (!slot.state.compareAndSet(RUNNING, next)) {
+                // Removed during the slice
+                finishRemove(slot);
+                return;
+            }
+            if (stopped) {
+                if (MachinePool.this.slots.remove(machine, slot)) {
+                    machine.clearSignalListener(slot.listener);
+                }
+                return;
+            }
+            if (next == WAITING) {
+                // A signal may have arrived before the state was changed
+                if (machine.isWaitingForSignal() || !slot.state.compareAndSet(WAITING, QUEUED)) {
+                    return;
+                }
+            }
+            new Slice(slot).fork();
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int sliceInstructions;
+    private final Map<Machine, Slot> slots = new ConcurrentHashMap<>();
+    /* Slots removed while running a slice, until it finishes. Guarded by this pool. */
+    private final Map<Machine, Slot> retiring = new HashMap<>();
+    private final Queue<Slot> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructs a pool with a thread for each available processor.
+     */
+    public MachinePool() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_SLICE);
+    }
+
+    /**
+     * Constructs a pool.
+     *
+     * @param parallelism The number of threads
+     * @param sliceInstructions The number of instructions each machine runs before the next
+     *        machine gets a turn
+     */
+    public MachinePool(int parallelism, int sliceInstructions) {
+        if (sliceInstructions <= 0) {
+            throw new IllegalArgumentException("Slice must be at least one instruction");
+        }
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.sliceInstructions = sliceInstructions;
+    }
+
+    /**
+     * Adds a machine to the pool and starts running it. A machine that was removed while running
+     * a slice starts again once that slice has finished.
+     *
+     * @param machine The machine, which must not be run in any other way while in the pool
+     */
+    public synchronized void add(Machine machine) {
+        Slot slot = new Slot(machine);
+        if (this.slots.putIfAbsent(machine, slot) != null) {
+            throw new IllegalArgumentException("Machine is already in the pool");
+        }
+        machine.setSignalListener(slot.listener);
+        Slot previous = this.retiring.get(machine);
+        if (previous != null) {
+            previous.successor = slot;
+            return;
+        }
+        schedule(slot);
+    }
+
+    /**
+     * Queues a machine from outside the pool. The pool is also given a task that picks it up, for
+     * when every thread is idle.
+     */
+    private void schedule(Slot slot) {
+        this.pending.add(slot);
+        this.pool.execute(this::forkPending);
+    }
+
+    /**
+     * Moves the machines queued from outside the pool to the queue of the current thread.
+     */
+    private void forkPending() {
+        Slot slot;
+        while ((slot = this.pending.poll()) != null) {
+            new Slice(slot).fork();
+        }
+    }
+
+    /**
+     * Removes a machine from the pool. It may still finish the slice it is running, so it must not
+     * be run in any other way straight away. Adding it back to the pool is safe, as it waits for
+     * the slice.
+     *
+     * @param machine The machine
+     * @return True if the machine was in the pool
+     */
+    public synchronized boolean remove(Machine machine) {
+        Slot slot = this.slots.remove(machine);
+        if (slot == null) {
+            return false;
+        }
+        machine.clearSignalListener(slot.listener);
+        while (true) {
+            int state = slot.state.get();
+            if (state == RUNNING) {
+                if (slot.state.compareAndSet(RUNNING, REMOVING)) {
+                    this.retiring.put(machine, slot);
+                    break;
+                }
+            } else if (state == REMOVED || slot.state.compareAndSet(state, REMOVED)) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called when a slice ends after its machine was removed. Starts the machine again if it was
+     * added back in the meantime.
+     */
+    private void finishRemove(Slot slot) {
+        Slot successor;
+        synchronized (this) {
+            slot.state.set(REMOVED);
+            this.retiring.remove(slot.machine);
+            successor = slot.successor;
+        }
+        if (successor != null) {
+            schedule(successor);
+        }
+    }
+
+    public boolean contains(Machine machine) {
+        return this.slots.containsKey(machine);
+    }
+
+    /**
+     * Gets the number of machines in the pool.
+     */
+    public int size() {
+        return this.slots.size();
+    }
+
+    public int getParallelism() {
+        return this.pool.getParallelism();
+    }
+
+    /**
+     * Removes every machine and stops the threads once their current slices finish.
+     */
+    public void shutdown() {
+        for (Machine machine : this.slots.keySet()) {
+            remove(machine);
+        }
+        this.pool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.pool.awaitTermination(timeout, unit);
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02;
+
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Somewhere to publish the live metrics of a machine, see {@link MachineMetrics#register}. Values
+ * are read from the suppliers whenever the registry collects them, on the registry's own thread.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * Adds a count that only ever goes up.
+     *
+     * @param name The name of the metric
+     * @param description What is counted
+     * @param value Reads the current count
+     */
+    void counter(String name, String description, LongSupplier value);
+
+    /**
+     * Adds a value that can go up and down, such as a rate.
+     *
+     * @param name The name of the metric
+     * @param description What is measured
+     * @param value Reads the current value
+     */
+    void gauge(String name, String description, DoubleSupplier value);
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts the instructions executed for each opcode and at each address. Attach it to a CPU with
+ * {@link Cpu#setProfiler}.
+ *
+ * <p>
+ * The counts are updated by the CPU thread without any synchronization, so they may lag behind if
+ * read while the machine is running.
+ * </p>
+ */
+public final class Profiler {
+
+    private final long[] opcodeCounts = new long[0x100];
+    private final long[] pcCounts = new long[0x10000];
+    private final byte[] pcSizes = new byte[0x10000];
+
+    /**
+     * Adds the instruction that was just executed.
+     *
+     * @param state The state after the instruction
+     */
+    void record(CpuState state) {
+        int pc = state.lastPc;
+        this.opcodeCounts[state.ir]++;
+        this.pcCounts[pc]++;
+        this.pcSizes[pc] = (byte) state.instSize;
+    }
+
+    public long getOpcodeCount(int opcode) {
+        return this.opcodeCounts[opcode];
+    }
+
+    public long getPcCount(int pc) {
+        return this.pcCounts[pc];
+    }
+
+    /**
+     * Gets the total number of instructions counted.
+     */
+    public long getInstructionCount() {
+        long total = 0;
+        for (long count : this.opcodeCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    public void reset() {
+        Arrays.fill(this.opcodeCounts, 0);
+        Arrays.fill(this.pcCounts, 0);
+        Arrays.fill(this.pcSizes, (byte) 0);
+    }
+
+    /**
+     * Finds the addresses where the most instructions were executed.
+     *
+     * @param bus The bus to read the instructions from, for disassembly
+     * @param limit The maximum number of hot spots to return
+     * @return The hot spots, most executed first
+     * @throws IllegalArgumentException If the limit is negative
+     */
+    public List<HotSpot> getHotSpots(Bus bus, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative");
+        }
+        if (limit == 0) {
+            return new ArrayList<>();
+        }
+        PriorityQueue<HotSpot> top = new PriorityQueue<>(limit + 1);
+        for (int pc = 0; pc < this.pcCounts.length; pc++) {
+            long count = this.pcCounts[pc];
+            if (count == 0 || top.size() == limit && count <= top.peek().count) {
+                continue;
+            }
+            top.add(new HotSpot(pc, count, this.pcSizes[pc]));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+        List<HotSpot> hotSpots = new ArrayList<>(top);
+        Collections.sort(hotSpots, Collections.reverseOrder());
+        for (HotSpot hotSpot : hotSpots) {
+            hotSpot.disassemble(bus);
+        }
+        return hotSpots;
+    }
+
+    /**
+     * An address and the number of instructions executed there.
+     */
+    public static final class HotSpot implements Comparable<HotSpot> {
+
+        private final int pc;
+        private final long count;
+        private final int size;
+        private int opcode;
+        private String disassembly;
+
+        HotSpot(int pc, long count, int size) {
+            this.pc = pc;
+            this.count = count;
+            this.size = size;
+        }
+
+        void disassemble(Bus bus) {
+            int[] args = new int[2];
+            this.opcode = bus.peek(this.pc);
+            for (int i = 1; i < this.size; i++) {
+                args[i - 1] = bus.peek((this.pc + i) & 0xffff);
+            }
+            this.disassembly = Cpu.disassembleOp(this.opcode, args, this.size);
+        }
+
+        public int getPc() {
+            return this.pc;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public int getOpcode() {
+            return this.opcode;
+        }
+
+        public String getDisassembly() {
+            return this.disassembly;
+        }
+
+        @Override
+        public int compareTo(HotSpot other) {
+            return Long.compare(this.count, other.count);
+        }
+
+        @Override
+        public String toString() {
+            return Utils.wordToHex(this.pc) + "  " + this.disassembly + "  " + this.count;
+        }
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.simon816.j65el02;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a set of machines against a fixed tick clock, in the same way as RedPower runs its CPUs
+ * once per world tick. Each tick, every machine runs until it has used its instruction budget or
+ * waits for an interrupt.
+ *
+ * <p>
+ * A machine waiting for an interrupt is skipped, and costs nothing, until {@link Machine#signal}
+ * is called. Machines that use their whole budget in a tick, and ticks that take longer than the
+ * tick period, are counted and reported to the {@link OverrunListener} if one is set.
+ * </p>
+ *
+ * <p>
+ * Machines may be added and removed from any thread. Ticks are run by {@link #run}, or by calling
+ * {@link #tick} from an external clock. Only one tick runs at a time, and the tick and budget
+ * counters are only written by the thread running it, so they can be read from any thread.
+ * </p>
+ */
+public class TickScheduler implements Runnable {
+
+    /**
+     * Receives reports of machines and ticks that went over their budget.
+     */
+    public interface OverrunListener {
+
+        /**
+         * Called when a machine used its whole instruction budget in a tick without waiting for an
+         * interrupt.
+         *
+         * @param machine The machine
+         * @param tick The tick number
+         */
+        void budgetExhausted(Machine machine, long tick);
+
+        /**
+         * Called when running a tick took longer than the tick period.
+         *
+         * @param tick The tick number
+         * @param nanos The time taken to run the tick
+         */
+        void tickOverrun(long tick, long nanos);
+
+        /**
+         * Called when {@link TickScheduler#run} skipped a tick period because another thread was
+         * running a tick. This also counts as an overrun.
+         */
+        default void tickSkipped() {
+        }
+    }
+
+    private static final class Entry {
+
+        final Machine machine;
+        volatile int budget;
+        volatile long exhaustedTicks;
+
+        Entry(Machine machine, int budget) {
+            this.machine = machine;
+            this.budget = budget;
+        }
+    }
+
+    private final long tickNanos;
+    /* Changed under the scheduler's lock, so a machine cannot be added twice, and read without it */
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+    private volatile OverrunListener overrunListener;
+    private volatile boolean isRunning;
+    private final AtomicBoolean ticking = new AtomicBoolean();
+    private volatile long tickCount;
+    private final AtomicLong overrunCount = new AtomicLong();
+
+    /**
+     * Constructs a scheduler with the given tick period.
+     *
+     * @param tickNanos The length of a tick in nanoseconds, used by {@link #run}
+     */
+    public TickScheduler(long tickNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("Tick period must be positive");
+        }
+        this.tickNanos = tickNanos;
+    }
+
+    /**
+     * Adds a machine to the scheduler.
+     *
+     * @param machine The machine
+     * @param instructionsPerTick The number of instructions the machine may run each tick
+     */
+    public synchronized void add(Machine machine, int instructionsPerTick) {
+        if (instructionsPerTick <= 0) {
+            throw new IllegalArgumentException("Instruction budget must be positive");
+        }
+        if (find(machine) != null) {
+            throw new IllegalArgumentException("Machine is already scheduled");
+        }
+        this.entries.add(new Entry(machine, instructionsPerTick));
+    }
+
+    /**
+     * Removes a machine from the scheduler. It stops being run from the next tick.
+     *
+     * @param machine The machine
+     * @return True if the machine was scheduled
+     */
+    public synchronized boolean remove(Machine machine) {
+        Entry entry = find(machine);
+        return entry != null && this.entries.remove(entry);
+    }
+
+    /**
+     * Changes the instruction budget of a machine, from the next tick.
+     *
+     * @param machine The machine
+     * @param instructionsPerTick The number of instructions the machine may run each tick
+     */
+    public void setBudget(Machine machine, int instructionsPerTick) {
+        if (instructionsPerTick <= 0) {
+            throw new IllegalArgumentException("Instruction budget must be positive");
+        }
+        getEntry(machine).budget = instructionsPerTick;
+    }
+
+    public int getBudget(Machine machine) {
+        return getEntry(machine).budget;
+    }
+
+    /**
+     * Gets the number of ticks in which the machine used its whole budget.
+     *
+     * @param machine The machine
+     * @return The number of ticks
+     */
+    public long getExhaustedTicks(Machine machine) {
+        return getEntry(machine).exhaustedTicks;
+    }
+
+    public void setOverrunListener(OverrunListener overrunListener) {
+        this.overrunListener = overrunListener;
+    }
+
+    public long getTickCount() {
+        return this.tickCount;
+    }
+
+    /**
+     * Gets the number of ticks that took longer than the tick period, and of periods that
+     * {@link #run} skipped.
+     */
+    public long getOverrunCount() {
+        return this.overrunCount.get();
+    }
+
+    public boolean isRunning() {
+        return this.isRunning;
+    }
+
+    /**
+     * Runs ticks at the tick period until {@link #stop} is called. If a tick overruns, the next
+     * tick starts straight away and the clock is reset rather than trying to catch up. If another
+     * thread is running a tick when a period starts, that period is skipped and counted as an
+     * overrun.
+     */
+    @Override
+    public void run() {
+        this.isRunning = true;
+        long nextTick = System.nanoTime();
+        while (this.isRunning) {
+            long start = System.nanoTime();
+            long tick = -1;
+            if (this.ticking.compareAndSet(false, true)) {
+                try {
+                    tick = runTick();
+                } finally {
+                    this.ticking.set(false);
+                }
+            }
+            long now = System.nanoTime();
+            nextTick += this.tickNanos;
+            OverrunListener listener = this.overrunListener;
+            if (tick == -1) {
+                this.overrunCount.incrementAndGet();
+                if (listener != null) {
+                    listener.tickSkipped();
+                }
+            } else if (now - start > this.tickNanos) {
+                this.overrunCount.incrementAndGet();
+                if (listener != null) {
+                    listener.tickOverrun(tick, now - start);
+                }
+            }
+            if (nextTick - now > 0) {
+                LockSupport.parkNanos(this, nextTick - now);
+            } else {
+                nextTick = now;
+            }
+        }
+    }
+
+    public void stop() {
+        this.isRunning = false;
+    }
+
+    /**
+     * Runs a single tick of every machine. Machines that are stopped or waiting for a signal are
+     * skipped.
+     *
+     * @throws IllegalStateException If another thread is running a tick, for example because
+     *         {@link #run} is running
+     */
+    public void tick() {
+        if (!this.ticking.compareAndSet(false, true)) {
+            throw new IllegalStateException("A tick is already running");
+        }
+        try {
+            runTick();
+        } finally {
+            this.ticking.set(false);
+        }
+    }
+
+    /**
+     * Runs a tick, with the ticking guard held.
+     *
+     * @return The tick number
+     */
+    private long runTick() {
+        long tick = this.tickCount++;
+        OverrunListener listener = this.overrunListener;
+        for (Entry entry : this.entries) {
+            Machine machine = entry.machine;
+            if (machine.isWaitingForSignal() || machine.getCpu().isStopped()) {
+                continue;
+            }
+            int budget = entry.budget;
+            long executed = machine.runSlice(budget);
+            if (executed >= budget && !machine.isWaitingForSignal() && !machine.getCpu().isStopped()) {
+                entry.exhaustedTicks++;
+                if (listener != null) {
+                    listener.budgetExhausted(machine, tick);
+                }
+            }
+        }
+        return tick;
+    }
+
+    private Entry find(Machine machine) {
+        for (Entry entry : this.entries) {
+            if (entry.machine == machine) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private Entry getEntry(Machine machine) {
+        Entry entry = find(machine);
+        if (entry == null) {
+            throw new IllegalArgumentException("Machine is not scheduled");
+        }
+        return entry;
+    }
+
+}
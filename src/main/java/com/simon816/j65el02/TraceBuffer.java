@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2017 Simon816
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.simon816.j65el02;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A ring buffer of binary trace records, one for each instruction executed, kept off the heap.
+ * Attach it to a CPU with {@link Cpu#setTraceBuffer}. Once full, each new record overwrites the
+ * oldest, so the buffer always holds the most recent instructions.
+ *
+ * <p>
+ * Traced code always runs in the interpreter, never as recompiled blocks, and recording an
+ * instruction costs about as much as interpreting a simple one. Traced code therefore runs at
+ * roughly half the speed of the interpreter, and several times slower than recompiled code.
+ * </p>
+ *
+ * <p>
+ * Each record is {@value #RECORD_SIZE} bytes, little-endian, holding the state after the
+ * instruction:
+ * </p>
+ *
+ * <pre>
+ *  0  PC of the instruction (16 bits)    14  S (16 bits)
+ *  2  Opcode (8 bits)                    16  R (16 bits)
+ *  3  Operands (2 x 8 bits)              18  I (16 bits)
+ *  5  B, the top of A (8 bits)           20  D (16 bits)
+ *  6  Flags, see below (16 bits)         22  Unused (16 bits)
+ *  8  A (16 bits)                        24  Z result, zero if Z is set (32 bits)
+ * 10  X (16 bits)                        28  N result, negative if N is set (32 bits)
+ * 12  Y (16 bits)
+ * </pre>
+ *
+ * <p>
+ * The flag bits from lowest are C, I, D, B, V, then the emulation, M and X width flags. Z and N
+ * are kept as the results the CPU derives them from, so that recording does not have to.
+ * </p>
+ *
+ * <p>
+ * {@link #writeTo} writes the records out oldest first, and {@link #decode} renders them in the
+ * same text format as {@link CpuState#toTraceEvent}.
+ * </p>
+ */
+public final class TraceBuffer {
+
+    public static final int RECORD_SIZE = 32;
+
+    private static final int FILE_MAGIC = 0x4a363554; // "J65T"
+    private static final int FILE_VERSION = 2;
+    private static final int HEADER_SIZE = 10;
+
+    private final ByteBuffer buffer;
+    /* A view of the buffer with a long for every 8 bytes, written by record */
+    private final LongBuffer longs;
+    private final int capacity;
+    /* Index in longs of the next record */
+    private int index;
+    private long count;
+
+    /**
+     * Constructs a trace buffer.
+     *
+     * @param capacity The number of instructions to keep
+     */
+    public TraceBuffer(int capacity) {
+        if (capacity <= 0 || capacity > Integer.MAX_VALUE / RECORD_SIZE) {
+            throw new IllegalArgumentException("Capacity must be between 1 and " + Integer.MAX_VALUE / RECORD_SIZE);
+        }
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.longs = this.buffer.asLongBuffer();
+    }
+
+    /**
+     * Adds a record for the instruction that was just executed.
+     *
+     * @param state The state after the instruction
+     */
+    void record(CpuState state) {
+        // Shifting after the conversion lets the JIT use the boolean as it is, without a branch
+        int flags = (state.carryFlag ? 1 : 0)
+                | (state.irqDisableFlag ? 1 : 0) << 1
+                | (state.decimalModeFlag ? 1 : 0) << 2
+                | (state.breakFlag ? 1 : 0) << 3
+                | (state.overflowFlag ? 1 : 0) << 4
+                | (state.emulationFlag ? 1 : 0) << 5
+                | (state.mWidthFlag ? 1 : 0) << 6
+                | (state.indexWidthFlag ? 1 : 0) << 7;
+        LongBuffer longs = this.longs;
+        int index = this.index;
+        int[] args = state.args;
+        // Fields are packed into ints first, where shifting left drops their unused top bits
+        longs.put(index, pack((char) state.lastPc | (state.ir & 0xff) << 16 | args[0] << 24,
+                (args[1] & 0xff) | (state.aTop & 0xff00) | flags << 16));
+        longs.put(index + 1, pack((char) state.a | state.x << 16, (char) state.y | state.sp << 16));
+        longs.put(index + 2, pack((char) state.r | state.i << 16, (char) state.d));
+        longs.put(index + 3, pack(state.zeroResult, state.negativeResult));
+        index += RECORD_SIZE / 8;
+        this.index = index == longs.capacity() ? 0 : index;
+        this.count++;
+    }
+
+    private static long pack(int low, int high) {
+        return (low & 0xffffffffL) | (long) high << 32;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Gets the number of instructions recorded since the buffer was created or cleared, including
+     * those that have since been overwritten.
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Gets the number of records held.
+     */
+    public int size() {
+        return (int) Math.min(this.count, this.capacity);
+    }
+
+    public void clear() {
+        this.index = 0;
+        this.count = 0;
+    }
+
+    /**
+     * Writes the records held, oldest first, after a short header. The CPU must not be running.
+     *
+     * @param out The channel to write to
+     * @throws IOException If the channel fails
+     */
+    public void writeTo(WritableByteChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(FILE_MAGIC).putShort((short) FILE_VERSION).putInt(size()).flip();
+        writeFully(out, header);
+        ByteBuffer records = this.buffer.duplicate();
+        if (this.count > this.capacity) {
+            records.limit(records.capacity()).position(this.index * 8);
+            writeFully(out, records);
+        }
+        records.limit(this.index * 8).position(0);
+        writeFully(out, records);
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Renders records written by {@link #writeTo} as text, one line per instruction in the format
+     * of {@link CpuState#toTraceEvent}.
+     *
+     * @param in The channel to read from
+     * @param out Where to write the text
+     * @throws IOException If reading or writing fails, or the input is not a trace
+     */
+    public static void decode(ReadableByteChannel in, Appendable out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(in, header);
+        if (header.getInt() != FILE_MAGIC) {
+            throw new IOException("Not a trace");
+        }
+        int version = header.getShort() & 0xffff;
+        if (version != FILE_VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        int size = header.getInt();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        CpuState state = new CpuState();
+        for (int n = 0; n < size; n++) {
+            record.clear();
+            readFully(in, record);
+            decodeRecord(record, state);
+            out.append(state.toTraceEvent()).append('\n');
+        }
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) == -1) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void decodeRecord(ByteBuffer record, CpuState state) {
+        long first = record.getLong(0);
+        long second = record.getLong(8);
+        long third = record.getLong(16);
+        long fourth = record.getLong(24);
+        state.lastPc = (int) first & 0xffff;
+        state.ir = (int) (first >>> 16) & 0xff;
+        state.args[0] = (int) (first >>> 24) & 0xff;
+        state.args[1] = (int) (first >>> 32) & 0xff;
+        state.aTop = ((int) (first >>> 40) & 0xff) << 8;
+        int flags = (int) (first >>> 48) & 0xffff;
+        state.carryFlag = (flags & 1) != 0;
+        state.irqDisableFlag = (flags & 1 << 1) != 0;
+        state.decimalModeFlag = (flags & 1 << 2) != 0;
+        state.breakFlag = (flags & 1 << 3) != 0;
+        state.overflowFlag = (flags & 1 << 4) != 0;
+        state.emulationFlag = (flags & 1 << 5) != 0;
+        state.mWidthFlag = (flags & 1 << 6) != 0;
+        state.indexWidthFlag = (flags & 1 << 7) != 0;
+        state.a = (int) second & 0xffff;
+        state.x = (int) (second >>> 16) & 0xffff;
+        state.y = (int) (second >>> 32) & 0xffff;
+        state.sp = (int) (second >>> 48) & 0xffff;
+        state.r = (int) third & 0xffff;
+        state.i = (int) (third >>> 16) & 0xffff;
+        state.d = (int) (third >>> 32) & 0xffff;
+        state.zeroResult = (int) fourth;
+        state.negativeResult = (int) (fourth >>> 32);
+    }
+
+}
@@ -21,6 +21,10 @@
 
 package com.simon816.j65el02.device;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * A memory-mapped IO Device.
  */
@@ -30,6 +34,8 @@ public abstract class Device {
     protected int startAddress;
     protected int endAddress;
 
+    private Runnable mapChangeListener;
+
     public Device(int startAddress, int endAddress) {
         this.startAddress = startAddress;
         this.endAddress = endAddress;
@@ -38,6 +44,13 @@ public abstract class Device {
     /* Methods required to be implemented by inheriting classes. */
     public abstract void write(int address, int data);
 
+    /**
+     * Reads a byte from the device.
+     *
+     * @param address The address, relative to the start of the device
+     * @param cpuAccess False if this is a peek for debugging, which must not have any side effects
+     * @return The byte read
+     */
     public abstract int read(int address, boolean cpuAccess);
 
     public int getSize() {
@@ -52,4 +65,61 @@ public abstract class Device {
         return this.startAddress;
     }
 
+    /**
+     * Writes the state of this device for a machine snapshot. Devices without any state write
+     * nothing.
+     *
+     * @param out The output
+     * @throws IOException If the output fails
+     */
+    public void saveState(DataOutput out) throws IOException {
+    }
+
+    /**
+     * Replaces the state of this device with one written by {@link #saveState}.
+     *
+     * @param in The input
+     * @throws IOException If the input fails or does not match this device
+     */
+    public void loadState(DataInput in) throws IOException {
+    }
+
+    /**
+     * Writes the changes to this device since the last delta, for an incremental snapshot. By
+     * default this writes the full state.
+     *
+     * @param out The output
+     * @throws IOException If the output fails
+     */
+    public void saveDelta(DataOutput out) throws IOException {
+        saveState(out);
+    }
+
+    /**
+     * Applies changes written by {@link #saveDelta}.
+     *
+     * @param in The input
+     * @throws IOException If the input fails or does not match this device
+     */
+    public void loadDelta(DataInput in) throws IOException {
+        loadState(in);
+    }
+
+    /**
+     * Sets the callback that is run whenever this device changes where or how it is mapped into
+     * the address space, or its contents are changed without going through the bus. Used by the
+     * {@link com.simon816.j65el02.Bus} to keep its page table up to date.
+     *
+     * @param listener The callback, or null to remove it
+     */
+    public void setMapChangeListener(Runnable listener) {
+        this.mapChangeListener = listener;
+    }
+
+    protected void notifyMapChanged() {
+        if (this.mapChangeListener != null) {
+            this.mapChangeListener.run();
+        }
+    }
+
 }
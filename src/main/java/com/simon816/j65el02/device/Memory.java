@@ -21,52 +21,294 @@
 
 package com.simon816.j65el02.device;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.function.IntConsumer;
 
+/**
+ * RAM, stored in pages.
+ *
+ * <p>
+ * A memory can be forked with {@link #fork}, after which both memories share their pages. A
+ * shared page is copied by whichever memory writes to it first, so each memory only allocates the
+ * pages that it changes.
+ * </p>
+ *
+ * <p>
+ * Pages written since the last checkpoint are tracked as dirty, so that {@link #saveDelta} only
+ * needs to save those pages. A page is marked when it is first written, after which it can be
+ * written directly until the next checkpoint.
+ * </p>
+ */
 public class Memory extends Device {
 
-    private byte[] mem;
+    /**
+     * Size of each page of memory, matching the page size of the Bus.
+     */
+    public static final int PAGE_SIZE = 0x100;
+
+    private final int size;
+    private final byte[][] pages;
+
+    /* Pages that may be shared with another memory, and must be copied before writing */
+    private final boolean[] shared;
+
+    /* Bitmap of pages written since the last checkpoint, which starts with every page set */
+    private final long[] dirty;
+
+    private IntConsumer pageChangeListener;
 
     public Memory(int startAddress, int endAddress) {
         super(startAddress, endAddress);
-        this.mem = new byte[this.getSize()];
+        this.size = this.getSize();
+        this.pages = new byte[(this.size + PAGE_SIZE - 1) / PAGE_SIZE][PAGE_SIZE];
+        this.shared = new boolean[this.pages.length];
+        this.dirty = new long[(this.pages.length + 63) / 64];
+        Arrays.fill(this.dirty, -1L);
+    }
+
+    private Memory(Memory template) {
+        super(template.startAddress, template.endAddress);
+        this.size = template.size;
+        this.pages = template.pages.clone();
+        this.shared = new boolean[this.pages.length];
+        Arrays.fill(this.shared, true);
+        this.dirty = new long[(this.pages.length + 63) / 64];
+        Arrays.fill(this.dirty, -1L);
+    }
+
+    /**
+     * Creates a copy of this memory that shares all of its pages, see {@link Memory}. This memory
+     * must not be written to by another thread while it is being forked.
+     *
+     * @return The copy
+     */
+    public Memory fork() {
+        Memory fork = new Memory(this);
+        for (int page = 0; page < this.pages.length; page++) {
+            if (!this.shared[page]) {
+                this.shared[page] = true;
+                notifyPageChanged(page);
+            }
+        }
+        return fork;
     }
 
     @Override
     public void write(int address, int data) {
-        if (address >= this.mem.length) {
+        if (address >= this.size) {
             return;
         }
-        this.mem[address] = (byte) (data & 0xff);
+        writablePage(address >> 8)[address & 0xff] = (byte) (data & 0xff);
     }
 
     @Override
     public int read(int address, boolean cpuAccess) {
-        if (address >= this.mem.length) {
+        if (address >= this.size) {
             return 0;
         }
-        return this.mem[address] & 0xff;
+        return this.pages[address >> 8][address & 0xff] & 0xff;
+    }
+
+    /**
+     * Gets the array backing a page of this memory so that it can be accessed directly.
+     *
+     * @param page The page number, relative to the start of this memory
+     * @return The backing array, or null if the page is not entirely within this memory
+     */
+    public byte[] getPage(int page) {
+        if (page < 0 || (page + 1) * PAGE_SIZE > this.size) {
+            return null;
+        }
+        return this.pages[page];
+    }
+
+    /**
+     * Whether a page may be shared with a forked memory.
+     *
+     * @param page The page number, relative to the start of this memory
+     * @return True if the page is shared
+     */
+    public boolean isShared(int page) {
+        return this.shared[page];
+    }
+
+    /**
+     * Whether a page has been written since the last checkpoint.
+     *
+     * @param page The page number, relative to the start of this memory
+     * @return True if the page is dirty
+     */
+    public boolean isDirty(int page) {
+        return (this.dirty[page >> 6] & 1L << page) != 0;
+    }
+
+    /**
+     * Whether a page can be written directly through the array returned by {@link #getPage}.
+     * Pages that are shared or not yet dirty must be written through {@link #write}, which copies
+     * or marks them first.
+     *
+     * @param page The page number, relative to the start of this memory
+     * @return True if the page can be written directly
+     */
+    public boolean isWritable(int page) {
+        return !this.shared[page] && isDirty(page);
+    }
+
+    /**
+     * Starts a new checkpoint by marking every page as clean.
+     */
+    public void clearDirty() {
+        for (int page = 0; page < this.pages.length; page++) {
+            if (isDirty(page)) {
+                this.dirty[page >> 6] &= ~(1L << page);
+                notifyPageChanged(page);
+            }
+        }
+    }
+
+    /**
+     * Sets the callback that is run with the page number whenever {@link #isWritable} or the array
+     * returned by {@link #getPage} changes for a page without its contents changing.
+     *
+     * @param listener The callback, or null to remove it
+     */
+    public void setPageChangeListener(IntConsumer listener) {
+        this.pageChangeListener = listener;
+    }
+
+    private void notifyPageChanged(int page) {
+        if (this.pageChangeListener != null) {
+            this.pageChangeListener.accept(page);
+        }
+    }
+
+    /* Copies the page if it is shared and marks it dirty, ready to be written */
+    private byte[] writablePage(int page) {
+        byte[] bytes = this.pages[page];
+        if (!isWritable(page)) {
+            if (this.shared[page]) {
+                bytes = bytes.clone();
+                this.pages[page] = bytes;
+                this.shared[page] = false;
+            }
+            this.dirty[page >> 6] |= 1L << page;
+            notifyPageChanged(page);
+        }
+        return bytes;
+    }
+
+    /* Replaces shared pages with new ones ready to be overwritten, and marks every page clean */
+    private void resetPages() {
+        for (int page = 0; page < this.pages.length; page++) {
+            if (this.shared[page]) {
+                this.pages[page] = new byte[PAGE_SIZE];
+                this.shared[page] = false;
+            }
+        }
+        Arrays.fill(this.dirty, 0);
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(this.size);
+        for (byte[] page : this.pages) {
+            out.write(page);
+        }
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size != this.size) {
+            throw new IOException("Memory size " + size + " does not match " + this.size);
+        }
+        resetPages();
+        for (byte[] page : this.pages) {
+            in.readFully(page);
+        }
+        notifyMapChanged();
+    }
+
+    /**
+     * Writes only the pages that are dirty, then starts a new checkpoint.
+     */
+    @Override
+    public void saveDelta(DataOutput out) throws IOException {
+        int count = 0;
+        for (int page = 0; page < this.pages.length; page++) {
+            if (isDirty(page)) {
+                count++;
+            }
+        }
+        out.writeInt(this.size);
+        out.writeInt(count);
+        for (int page = 0; page < this.pages.length; page++) {
+            if (isDirty(page)) {
+                out.writeInt(page);
+                out.write(this.pages[page]);
+            }
+        }
+        clearDirty();
+    }
+
+    @Override
+    public void loadDelta(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size != this.size) {
+            throw new IOException("Memory size " + size + " does not match " + this.size);
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int page = in.readInt();
+            if (page < 0 || page >= this.pages.length) {
+                throw new IOException("Page " + page + " out of range");
+            }
+            if (this.shared[page]) {
+                this.pages[page] = new byte[PAGE_SIZE];
+                this.shared[page] = false;
+            }
+            in.readFully(this.pages[page]);
+        }
+        Arrays.fill(this.dirty, 0);
+        notifyMapChanged();
     }
 
     public void loadFromFile(Path file, int memOffset, int maxLen) throws IOException {
-        InputStream stream = Files.newInputStream(file);
         int offset = memOffset;
-        int len = Math.min(maxLen, this.mem.length - memOffset);
-        int read;
-        do {
-            read = stream.read(this.mem, offset, len);
-            offset += read;
-            len -= read;
-        } while (read != -1 && len > 0);
-        stream.close();
+        int len = Math.min(maxLen, this.size - memOffset);
+        if (len <= 0) {
+            return;
+        }
+        try (InputStream stream = Files.newInputStream(file)) {
+            int read;
+            do {
+                int pageOffset = offset & 0xff;
+                byte[] bytes = writablePage(offset >> 8);
+                read = stream.read(bytes, pageOffset, Math.min(len, PAGE_SIZE - pageOffset));
+                offset += read;
+                len -= read;
+            } while (read != -1 && len > 0);
+        }
+        notifyMapChanged();
     }
 
     public void clear() {
-        Arrays.fill(this.mem, (byte) 0);
+        for (int page = 0; page < this.pages.length; page++) {
+            if (this.shared[page]) {
+                this.pages[page] = new byte[PAGE_SIZE];
+                this.shared[page] = false;
+            } else {
+                Arrays.fill(this.pages[page], (byte) 0);
+            }
+        }
+        Arrays.fill(this.dirty, -1L);
+        notifyMapChanged();
     }
 
 }
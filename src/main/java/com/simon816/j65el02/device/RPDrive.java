@@ -19,8 +19,12 @@
 
 package com.simon816.j65el02.device;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import com.simon816.j65el02.InputLog;
 import com.simon816.j65el02.Machine;
 import com.simon816.j65el02.device.RedBus.Peripheral;
 
@@ -101,48 +105,98 @@ public class RPDrive implements Peripheral {
 
     @Override
     public void update() {
-        this.machine.signal();
+        switch (this.command) {
+            case 0x01: // Read Disk Name
+                this.buffer.clear();
+                this.buffer.put(this.diskName);
+                this.command = 0;
+                break;
+            case 0x02: // Write Disk Name
+                this.buffer.position(0);
+                this.buffer.get(this.diskName);
+                this.command = runDriverCommand();
+                break;
+            case 0x03: // Read Disk Serial
+                this.buffer.clear();
+                this.buffer.put(this.diskSerial);
+                this.command = 0;
+                break;
+            case 0x04: // Read Disk Sector
+            case 0x05: // Write Disk Sector
+                if (this.sector >= 0x800) {
+                    this.command = 0xff;
+                    break;
+                }
+                this.command = runDriverCommand();
+                break;
+            default: // Idle or failed, nothing has completed
+                return;
+        }
+        this.machine.signal(); // Command completed
+    }
+
+    /**
+     * Runs the current command through the driver. The disk may have changed by the time a run
+     * is replayed, so the outcome and any data read are recorded in the machine's input log, and
+     * taken from it instead of the driver when replaying.
+     *
+     * @return The new value of the command register
+     */
+    private int runDriverCommand() {
+        InputLog log = this.machine.getInputLog();
+        if (log != null && log.isReplaying()) {
+            return log.replayDisk(this.buffer);
+        }
+        int result = 0;
         try {
+            long start;
             switch (this.command) {
-                case 0x01: // Read Disk Name
-                    this.buffer.clear();
-                    this.buffer.put(this.diskName);
-                    this.command = 0;
-                    break;
-                case 0x02: // Write Disk Name
-                    this.buffer.position(0);
-                    this.buffer.get(this.diskName);
+                case 0x02:
                     this.driver.writeDiskName(this.diskName);
-                    this.command = 0;
                     break;
-                case 0x03: // Read Disk Serial
-                    this.buffer.clear();
-                    this.buffer.put(this.diskSerial);
-                    this.command = 0;
-                    break;
-                case 0x04: // Read Disk Sector
-                    if (this.sector >= 0x800) {
-                        this.command = 0xff;
-                        break;
-                    }
+                case 0x04:
+                    start = System.nanoTime();
                     this.driver.seek(this.sector << 7);
                     this.buffer.position(0);
                     this.driver.read(this.buffer);
-                    this.command = 0;
+                    this.machine.getMetrics().recordDiskRead(System.nanoTime() - start);
                     break;
-                case 0x05: // Write Disk Sector
-                    if (this.sector >= 0x800) {
-                        this.command = 0xff;
-                        break;
-                    }
+                case 0x05:
+                    start = System.nanoTime();
                     this.driver.seek(this.sector << 7);
                     this.buffer.position(0);
                     this.driver.write(this.buffer);
-                    this.command = 0;
+                    this.machine.getMetrics().recordDiskWrite(System.nanoTime() - start);
                     break;
             }
         } catch (Exception e) {
-            this.command = 0xff;
+            result = 0xff;
+        }
+        if (log != null) {
+            log.recordDisk(result, this.command == 0x04 ? this.buffer : null);
         }
+        return result;
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        byte[] data = new byte[SECTOR_SIZE];
+        ByteBuffer buffer = this.buffer.duplicate();
+        buffer.clear();
+        buffer.get(data);
+        out.write(data);
+        out.writeShort(this.sector);
+        out.writeByte(this.command);
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        byte[] data = new byte[SECTOR_SIZE];
+        in.readFully(data);
+        ByteBuffer buffer = this.buffer.duplicate();
+        buffer.clear();
+        buffer.put(data);
+        this.sector = in.readUnsignedShort();
+        this.command = in.readUnsignedByte();
     }
 }
@@ -19,6 +19,11 @@
 
 package com.simon816.j65el02.device;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.simon816.j65el02.Machine;
 import com.simon816.j65el02.device.RedBus.Peripheral;
 
 
@@ -33,9 +38,43 @@ import com.simon816.j65el02.device.RedBus.Peripheral;
  */
 public class RPIOExpander implements Peripheral {
 
+    private final Machine machine;
+
     private int readBuffer;
     private int outputLatch;
 
+    public RPIOExpander() {
+        this(null);
+    }
+
+    /**
+     * Constructs the IO expander.
+     *
+     * @param machine The machine the expander is attached to, used to deliver inputs so that they
+     *        can be recorded. May be null, in which case inputs are set directly.
+     */
+    public RPIOExpander(Machine machine) {
+        this.machine = machine;
+    }
+
+    /**
+     * Sets the input lines, which the machine sees in the read buffer.
+     *
+     * @param value The 16 input lines
+     */
+    public void setInput(int value) {
+        if (this.machine != null) {
+            this.machine.input(this, value);
+        } else {
+            applyInput(value);
+        }
+    }
+
+    @Override
+    public void applyInput(int value) {
+        this.readBuffer = value & 0xffff;
+    }
+
     @Override
     public void write(int address, int data) {
         switch (address) {
@@ -74,4 +113,16 @@ public class RPIOExpander implements Peripheral {
 
     }
 
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeShort(this.readBuffer);
+        out.writeShort(this.outputLatch);
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        this.readBuffer = in.readUnsignedShort();
+        this.outputLatch = in.readUnsignedShort();
+    }
+
 }
@@ -19,6 +19,10 @@
 
 package com.simon816.j65el02.device;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import com.simon816.j65el02.Machine;
 import com.simon816.j65el02.device.RedBus.Peripheral;
 
@@ -221,7 +225,56 @@ public class RPMonitor implements Peripheral {
         if (this.isDisplayDirty) {
             this.isDisplayDirty = false;
             this.driver.update(this.windowData);
+            this.machine.getMetrics().recordMonitorFrame();
+        }
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeByte(this.accessRow);
+        out.writeByte(this.cursorX);
+        out.writeByte(this.cursorY);
+        out.writeByte(this.cursorMode);
+        out.writeByte(this.keyBufferStart);
+        out.writeByte(this.keyBufferPos);
+        out.writeByte(this.blitMode);
+        out.writeByte(this.blitXStartOrFill);
+        out.writeByte(this.blitYStart);
+        out.writeByte(this.blitXOffset);
+        out.writeByte(this.blitYOffset);
+        out.writeByte(this.blitWidth);
+        out.writeByte(this.blitHeight);
+        out.write(this.keyBuffer);
+        for (byte[] row : this.windowData) {
+            out.write(row);
+        }
+    }
+
+    /**
+     * Restores the registers and window data, and redraws the whole display and cursor on the next
+     * update.
+     */
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        this.accessRow = in.readUnsignedByte();
+        this.cursorX = in.readUnsignedByte();
+        this.cursorY = in.readUnsignedByte();
+        this.cursorMode = in.readUnsignedByte();
+        this.keyBufferStart = in.readUnsignedByte();
+        this.keyBufferPos = in.readUnsignedByte();
+        this.blitMode = in.readUnsignedByte();
+        this.blitXStartOrFill = in.readUnsignedByte();
+        this.blitYStart = in.readUnsignedByte();
+        this.blitXOffset = in.readUnsignedByte();
+        this.blitYOffset = in.readUnsignedByte();
+        this.blitWidth = in.readUnsignedByte();
+        this.blitHeight = in.readUnsignedByte();
+        in.readFully(this.keyBuffer);
+        for (byte[] row : this.windowData) {
+            in.readFully(row);
         }
+        this.isDisplayDirty = true;
+        this.isCursorDirty = true;
     }
 
     /**
@@ -230,12 +283,16 @@ public class RPMonitor implements Peripheral {
      * @param key The key code
      */
     public void onKey(byte key) {
+        this.machine.input(this, key & 0xff);
+    }
+
+    @Override
+    public void applyInput(int key) {
         int nextPos = (this.keyBufferPos + 1) & 0x0f;
         if (nextPos != this.keyBufferStart) {
-            this.keyBuffer[this.keyBufferPos] = key;
+            this.keyBuffer[this.keyBufferPos] = (byte) key;
             this.keyBufferPos = nextPos;
         }
-        this.machine.signal();
     }
 
 }
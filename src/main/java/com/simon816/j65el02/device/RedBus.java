@@ -19,6 +19,10 @@
 
 package com.simon816.j65el02.device;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * Implements the 65el02 Redbus.
  */
@@ -35,6 +39,35 @@ public class RedBus extends Device {
 
         void update();
 
+        /**
+         * Applies an input from the host, such as a key press. Inputs are delivered through
+         * {@link com.simon816.j65el02.Machine#input} so that they can be recorded and replayed,
+         * and the machine signals the CPU after each one.
+         *
+         * @param value The input
+         */
+        default void applyInput(int value) {
+        }
+
+        /**
+         * Writes the registers of this peripheral for a machine snapshot. Peripherals without any
+         * state write nothing.
+         *
+         * @param out The output
+         * @throws IOException If the output fails
+         */
+        default void saveState(DataOutput out) throws IOException {
+        }
+
+        /**
+         * Replaces the registers of this peripheral with ones written by {@link #saveState}.
+         *
+         * @param in The input
+         * @throws IOException If the input fails
+         */
+        default void loadState(DataInput in) throws IOException {
+        }
+
     }
 
     private int activeDeviceId;
@@ -47,6 +80,9 @@ public class RedBus extends Device {
 
     private Peripheral[] peripherals = new Peripheral[0x100];
 
+    /* Reads and writes through the window to each peripheral, only written by the CPU thread */
+    private final long[] accessCounts = new long[0x100];
+
     public RedBus() {
         super(-1, -1); // there is no fixed address for the redbus
     }
@@ -58,17 +94,20 @@ public class RedBus extends Device {
         }
         Peripheral peripheral = this.peripherals[this.activeDeviceId];
         if (peripheral != null) {
+            this.accessCounts[this.activeDeviceId]++;
             peripheral.write(address, data & 0xff);
         }
     }
 
     @Override
     public int read(int address, boolean cpuAccess) {
-        if (!this.enabled) {
+        // Peripherals may change state when read, so they cannot be peeked at
+        if (!this.enabled || !cpuAccess) {
             return 0;
         }
         Peripheral peripheral = this.peripherals[this.activeDeviceId];
         if (peripheral != null) {
+            this.accessCounts[this.activeDeviceId]++;
             return peripheral.read(address);
         }
         return 0;
@@ -85,6 +124,7 @@ public class RedBus extends Device {
     public void setWindowOffset(int offset) {
         this.startAddress = offset;
         this.endAddress = offset + 0xff;
+        notifyMapChanged();
     }
 
     public int getWindowOffset() {
@@ -111,6 +151,84 @@ public class RedBus extends Device {
         this.peripherals[id] = peripheral;
     }
 
+    public Peripheral getPeripheral(int id) {
+        return this.peripherals[id];
+    }
+
+    /**
+     * Gets how many times the CPU has read or written the window while a peripheral was active.
+     *
+     * @param id The peripheral id
+     * @return The number of accesses
+     */
+    public long getAccessCount(int id) {
+        return this.accessCounts[id];
+    }
+
+    /**
+     * Finds the id a peripheral is attached with.
+     *
+     * @param peripheral The peripheral
+     * @return The id, or -1 if it is not attached
+     */
+    public int getPeripheralId(Peripheral peripheral) {
+        for (int id = 0; id < this.peripherals.length; id++) {
+            if (this.peripherals[id] == peripheral) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the RedBus settings followed by the state of every attached peripheral.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeByte(this.activeDeviceId);
+        out.writeBoolean(this.enabled);
+        out.writeInt(this.startAddress);
+        out.writeInt(this.endAddress);
+        out.writeInt(this.memoryWindow);
+        out.writeBoolean(this.enableWindow);
+        int count = 0;
+        for (Peripheral peripheral : this.peripherals) {
+            if (peripheral != null) {
+                count++;
+            }
+        }
+        out.writeShort(count);
+        for (int id = 0; id < this.peripherals.length; id++) {
+            if (this.peripherals[id] != null) {
+                out.writeByte(id);
+                this.peripherals[id].saveState(out);
+            }
+        }
+    }
+
+    /**
+     * Restores the settings and peripherals written by {@link #saveState}. The same peripherals
+     * must be attached with the same ids.
+     */
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        this.activeDeviceId = in.readUnsignedByte();
+        this.enabled = in.readBoolean();
+        this.startAddress = in.readInt();
+        this.endAddress = in.readInt();
+        this.memoryWindow = in.readInt();
+        this.enableWindow = in.readBoolean();
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            int id = in.readUnsignedByte();
+            if (this.peripherals[id] == null) {
+                throw new IOException("No peripheral with id " + id);
+            }
+            this.peripherals[id].loadState(in);
+        }
+        notifyMapChanged();
+    }
+
     public void updatePeripheral() {
         Peripheral peripheral = this.peripherals[this.activeDeviceId];
         if (peripheral != null) {